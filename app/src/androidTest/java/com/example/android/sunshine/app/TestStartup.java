@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.ActivityInstrumentationTestCase2;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+/*
+    Startup benchmark: measures the time from MainActivity.onCreate until the first forecast row
+    is in the list, with two weeks of weather already stored for the preferred location.  The
+    weather is written straight to the database file and the provider's connection is closed
+    before the activity starts, so the measured time includes the provider opening the database.
+    Run it from a freshly started test process, so no read is served from the provider's caches.
+    The result is logged under the "TestStartup" tag.
+ */
+public class TestStartup extends ActivityInstrumentationTestCase2<MainActivity> {
+    private static final String LOG_TAG = TestStartup.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "99705";
+    private static final int DAYS_TO_INSERT = 14;
+    private static final long FIRST_ROW_TIMEOUT = 10000;
+
+    private String mSavedLocation;
+
+    public TestStartup() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Context context = getInstrumentation().getTargetContext();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String locationKey = context.getString(R.string.pref_location_key);
+        mSavedLocation = prefs.getString(locationKey, null);
+        prefs.edit().putString(locationKey, TEST_LOCATION).commit();
+
+        seedForecast(context);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Context context = getInstrumentation().getTargetContext();
+        context.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        context.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String locationKey = context.getString(R.string.pref_location_key);
+        if (mSavedLocation == null) {
+            prefs.edit().remove(locationKey).commit();
+        } else {
+            prefs.edit().putString(locationKey, mSavedLocation).commit();
+        }
+        super.tearDown();
+    }
+
+    private void seedForecast(Context context) {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION);
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] weatherValues = new ContentValues[DAYS_TO_INSERT];
+        for (int i = 0; i < DAYS_TO_INSERT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE, today + i * DateUtils.DAY_IN_MILLIS);
+            values.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * (float) i);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * (float) i);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + i);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, 65 - i);
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * (float) i);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            weatherValues[i] = values;
+        }
+        TestUtilities.seedDatabase(context, locationValues, weatherValues);
+    }
+
+    public void testTimeToFirstForecast() {
+        final MainActivity activity = getActivity();
+
+        new PollingCheck(FIRST_ROW_TIMEOUT) {
+            @Override
+            protected boolean check() {
+                return activity.getTimeToFirstForecast() >= 0;
+            }
+        }.run();
+
+        long timeToFirstForecast = activity.getTimeToFirstForecast();
+        Log.i(LOG_TAG, "Time to first forecast row: " + timeToFirstForecast + "ms");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+/*
+    Checks the bundled city index: lookups by name, by name and country, and by prefix.
+ */
+public class TestCityIndex extends AndroidTestCase {
+
+    private CityIndex mCityIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCityIndex = CityIndex.getInstance(mContext);
+        assertNotNull("Error: The city index could not be opened", mCityIndex);
+    }
+
+    public void testNormalize() {
+        assertEquals("sao paulo", CityIndex.normalize("  São  Paulo "));
+        assertEquals("new york", CityIndex.normalize("NEW-YORK"));
+        assertTrue(CityIndex.isPostalCode("94043"));
+        assertFalse(CityIndex.isPostalCode("London"));
+    }
+
+    public void testResolve() {
+        CityIndex.City london = mCityIndex.resolve("london");
+        assertNotNull("Error: London is not in the city index", london);
+        assertEquals("Error: A bare name should resolve to the most populous city",
+                "GB", london.getCountry());
+
+        CityIndex.City londonCanada = mCityIndex.resolve("London, ca");
+        assertNotNull("Error: London, CA is not in the city index", londonCanada);
+        assertEquals("CA", londonCanada.getCountry());
+        assertFalse(london.getId() == londonCanada.getId());
+
+        CityIndex.City northPole = mCityIndex.resolve("North Pole,US");
+        assertNotNull("Error: North Pole is not in the city index", northPole);
+        assertEquals(64.75, northPole.getLatitude(), 0.1);
+        assertEquals(-147.35, northPole.getLongitude(), 0.1);
+
+        assertEquals("Error: Resolving a city's own location setting gave another city",
+                northPole.getId(), mCityIndex.resolve(northPole.getLocationSetting()).getId());
+
+        assertNull(mCityIndex.resolve("London,FR"));
+        assertNull(mCityIndex.resolve("Lon"));
+        assertNull(mCityIndex.resolve("Atlantis"));
+    }
+
+    public void testSuggest() {
+        List<CityIndex.City> cities = mCityIndex.suggest("san", 10);
+        assertFalse("Error: No suggestions for \"san\"", cities.isEmpty());
+        String previous = "";
+        for (CityIndex.City city : cities) {
+            String key = CityIndex.normalize(city.getName());
+            assertTrue("Error: " + city + " doesn't start with \"san\"", key.startsWith("san"));
+            assertTrue("Error: Suggestions are out of order", key.compareTo(previous) >= 0);
+            previous = key;
+        }
+
+        assertEquals(1, mCityIndex.suggest("lon", 1).size());
+        assertTrue(mCityIndex.suggest("zzz", 10).isEmpty());
+        assertTrue(mCityIndex.suggest(" ", 10).isEmpty());
+    }
+}
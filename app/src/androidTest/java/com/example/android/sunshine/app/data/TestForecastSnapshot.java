@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+
+/*
+    Writes forecast snapshots and reads them back through the memory-mapped reader.
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    private static final int DAYS = 10;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(mContext.getFilesDir(), ForecastSnapshot.FILE_NAME);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    // Yesterday and the following days, so the snapshot has a past day to skip
+    private static ForecastColumns createForecast(long firstDate, String description) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_MIN_TEMP
+        });
+        for (int i = 0; i < DAYS; i++) {
+            cursor.addRow(new Object[]{i, firstDate + i * DateUtils.DAY_IN_MILLIS, 800 + i,
+                    description, 20.5 + i, 10.25 - i});
+        }
+        return ForecastColumns.fromCursor(cursor);
+    }
+
+    public void testWriteAndRead() throws Exception {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createForecast(today - DateUtils.DAY_IN_MILLIS, "Clear"),
+                WeatherProvider.getDataVersion());
+
+        ForecastSnapshot snapshot = ForecastSnapshot.open(mContext);
+        assertNotNull("Error: The snapshot could not be read back", snapshot);
+        assertEquals(TestUtilities.TEST_LOCATION, snapshot.getLocationSetting());
+        assertEquals("Error: The snapshot should hold at most MAX_DAYS days",
+                ForecastSnapshot.MAX_DAYS, snapshot.getCount());
+        for (int i = 0; i < snapshot.getCount(); i++) {
+            assertEquals(today + (i - 1) * DateUtils.DAY_IN_MILLIS, snapshot.getDate(i));
+            assertEquals(800 + i, snapshot.getWeatherId(i));
+            assertEquals(20.5f + i, snapshot.getHigh(i), 0.001f);
+            assertEquals(10.25f - i, snapshot.getLow(i), 0.001f);
+            assertEquals("Clear", snapshot.getDescription(i));
+        }
+        assertSame("Error: An unchanged snapshot should not be mapped again",
+                snapshot, ForecastSnapshot.open(mContext));
+
+        Bundle todayValues = ForecastSnapshot.getToday(mContext, TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: Today's forecast is not in the snapshot", todayValues);
+        assertEquals(today, todayValues.getLong(WeatherEntry.COLUMN_DATE));
+        assertEquals(801, todayValues.getInt(WeatherEntry.COLUMN_WEATHER_ID));
+        assertEquals(21.5, todayValues.getDouble(WeatherEntry.COLUMN_MAX_TEMP), 0.001);
+
+        assertNull("Error: The snapshot was read for another location",
+                ForecastSnapshot.getToday(mContext, "London,GB"));
+    }
+
+    public void testLongDescriptionIsTruncated() throws Exception {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        String description = "Thunderstorm with heavy drizzle and hail";
+        ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createForecast(today, description), WeatherProvider.getDataVersion());
+
+        String read = ForecastSnapshot.open(mContext).getDescription(0);
+        assertTrue("Error: The description was not truncated", read.length() < description.length());
+        assertTrue(description.startsWith(read));
+    }
+
+    public void testProviderWriteRemovesSnapshot() throws Exception {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createForecast(today, "Clear"), WeatherProvider.getDataVersion());
+        assertNotNull(ForecastSnapshot.getToday(mContext, TestUtilities.TEST_LOCATION));
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        try {
+            assertNull("Error: The snapshot outlived a write to the provider",
+                    ForecastSnapshot.getToday(mContext, TestUtilities.TEST_LOCATION));
+            assertFalse(mFile.exists());
+        } finally {
+            mContext.getContentResolver().delete(LocationEntry.CONTENT_URI,
+                    LocationEntry._ID + " = ?", new String[]{locationUri.getLastPathSegment()});
+        }
+    }
+
+    public void testStaleSnapshotIsNotWritten() throws Exception {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        // As if a write through the provider had come in while the forecast was being read
+        ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createForecast(today, "Clear"), WeatherProvider.getDataVersion() - 1);
+        assertFalse("Error: A snapshot older than the data was put in place", mFile.exists());
+        assertNull(ForecastSnapshot.getToday(mContext, TestUtilities.TEST_LOCATION));
+    }
+
+    public void testMissingSnapshot() {
+        assertNull(ForecastSnapshot.open(mContext));
+        assertNull(ForecastSnapshot.getToday(mContext, TestUtilities.TEST_LOCATION));
+    }
+}
@@ -16,20 +16,35 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderClient;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.example.android.sunshine.app.utils.PollingCheck;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -61,6 +76,16 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                WeatherContract.HistoryEntry.CONTENT_URI,
+                null,
+                null
+        );
+        mContext.getContentResolver().delete(
+                WeatherEntry.STAGING_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -179,7 +204,9 @@ public class TestProvider extends AndroidTestCase {
         // Fantastic.  Now that we have a location, add some weather!
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
 
-        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        // The row is written in its compact form; the provider has to decode it on the way out
+        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null,
+                WeatherRowCodec.encode(db, weatherValues));
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
 
         db.close();
@@ -512,4 +539,584 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        This test pages through the bulk inserted forecast with the limit and after parameters
+        and checks that every row comes back exactly once, in date order.
+     */
+    public void testLimitAndKeysetPaging() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, testValues));
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE, 1),
+                null, null, null, null);
+        assertEquals("Error: limit=1 should return a single row", 1, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testLimitAndKeysetPaging. Error validating first row.",
+                cursor, bulkInsertContentValues[0]);
+        cursor.close();
+
+        final int pageSize = 3;
+        int seen = 0;
+        Uri pageUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE, pageSize);
+        while (true) {
+            cursor = mContext.getContentResolver().query(pageUri, null, null, null, null);
+            assertTrue("Error: A page is larger than its limit", cursor.getCount() <= pageSize);
+            if (!cursor.moveToFirst()) {
+                cursor.close();
+                break;
+            }
+            long lastDate;
+            do {
+                TestUtilities.validateCurrentRecord(
+                        "testLimitAndKeysetPaging. Error validating row " + seen,
+                        cursor, bulkInsertContentValues[seen]);
+                lastDate = cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_DATE));
+                seen++;
+            } while (cursor.moveToNext());
+            cursor.close();
+            pageUri = WeatherEntry.buildWeatherLocationAfterDate(
+                    TestUtilities.TEST_LOCATION, lastDate, pageSize);
+        }
+        assertEquals("Error: Paging did not return every row", BULK_INSERT_RECORDS_TO_INSERT, seen);
+    }
+
+    /*
+        This test checks the aggregates computed by the weather summary URI against the bulk
+        inserted forecast.
+     */
+    public void testWeatherSummary() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, testValues));
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        long firstDate = bulkInsertContentValues[0].getAsLong(WeatherEntry.COLUMN_DATE);
+        long lastDate = bulkInsertContentValues[BULK_INSERT_RECORDS_TO_INSERT - 1]
+                .getAsLong(WeatherEntry.COLUMN_DATE);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SummaryEntry.buildSummaryUri(TestUtilities.TEST_LOCATION,
+                        firstDate, lastDate),
+                null, null, null, null);
+
+        ContentValues expectedValues = new ContentValues();
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_DAY_COUNT, BULK_INSERT_RECORDS_TO_INSERT);
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_MAX_TEMP, 75 + BULK_INSERT_RECORDS_TO_INSERT - 1);
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_MIN_TEMP, 65 - BULK_INSERT_RECORDS_TO_INSERT + 1);
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_WARMEST_DATE, lastDate);
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_COLDEST_DATE, lastDate);
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_RAINIEST_DATE, lastDate);
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_DRIZZLE_DAYS, BULK_INSERT_RECORDS_TO_INSERT);
+        expectedValues.put(WeatherContract.SummaryEntry.COLUMN_CLEAR_DAYS, 0);
+        TestUtilities.validateCursor("testWeatherSummary. Error validating summary row.",
+                cursor, expectedValues);
+    }
+
+    /*
+        This test checks that the location scoped weather queries are answered from the
+        provider's query cache, and that a write through the provider invalidates it.
+     */
+    public void testQueryCache() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        WeatherProvider provider = getWeatherProvider();
+        Uri weatherUri = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+
+        long misses = provider.getQueryCacheMissCount();
+        long hits = provider.getQueryCacheHitCount();
+        TestUtilities.validateCursor("testQueryCache. Error validating first query.",
+                mContext.getContentResolver().query(weatherUri, null, null, null, null),
+                weatherValues);
+        assertEquals("Error: First query should have missed the cache",
+                misses + 1, provider.getQueryCacheMissCount());
+
+        TestUtilities.validateCursor("testQueryCache. Error validating cached query.",
+                mContext.getContentResolver().query(weatherUri, null, null, null, null),
+                weatherValues);
+        assertEquals("Error: Second query should have been served from the cache",
+                hits + 1, provider.getQueryCacheHitCount());
+
+        // An update through the provider has to be visible on the next read
+        ContentValues updatedValues = new ContentValues(weatherValues);
+        updatedValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, updatedValues,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(locationRowId)});
+
+        TestUtilities.validateCursor("testQueryCache. Error validating query after update.",
+                mContext.getContentResolver().query(weatherUri, null, null, null, null),
+                updatedValues);
+        assertEquals("Error: Query after an update should have missed the cache",
+                misses + 2, provider.getQueryCacheMissCount());
+    }
+
+    /*
+        This test checks that selections on the encoded weather columns compare decoded values,
+        for queries, updates and deletes alike.
+     */
+    public void testEncodedColumnSelections() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_MAX_TEMP + " > ? AND " + WeatherEntry.COLUMN_HUMIDITY + " = ?",
+                new String[]{"74", "1.2"}, null);
+        assertEquals("Error: The selection should compare degrees, not hundredths",
+                1, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_MAX_TEMP + " > 76", null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_SHORT_DESC + " = ?", new String[]{"Asteroids"}, null);
+        assertEquals("Error: short_desc should be selectable", 1, cursor.getCount());
+        cursor.close();
+
+        ContentValues updatedValues = new ContentValues(weatherValues);
+        updatedValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI,
+                updatedValues, WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_WIND_SPEED +
+                        " = ?", new String[]{"5.5"}));
+        TestUtilities.validateCursor("testEncodedColumnSelections. Error validating update.",
+                mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null,
+                        null), updatedValues);
+
+        assertEquals(1, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_SHORT_DESC + " = 'Asteroids' AND " +
+                        WeatherEntry.COLUMN_MAX_TEMP + " = 80", null));
+    }
+
+    /*
+        This test checks the retention policies: past days are removed for every location and
+        locations other than the one being kept are expired together with their weather.
+     */
+    public void testRetention() {
+        ContentValues northPoleValues = TestUtilities.createNorthPoleLocationValues();
+        long northPoleId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, northPoleValues));
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(northPoleId));
+
+        ContentValues otherValues = new ContentValues(northPoleValues);
+        otherValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "London, UK");
+        long otherId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, otherValues));
+        ContentValues futureWeather = TestUtilities.createWeatherValues(otherId);
+        futureWeather.put(WeatherEntry.COLUMN_DATE, System.currentTimeMillis());
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, futureWeather);
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(WeatherContract.EXTRA_COMPACT, true);
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_RUN_RETENTION, TestUtilities.TEST_LOCATION, extras);
+
+        assertEquals("Error: Both weather rows should have been removed",
+                2, result.getInt(WeatherContract.RESULT_WEATHER_DELETED));
+        assertEquals("Error: Only the other location should have been removed",
+                1, result.getInt(WeatherContract.RESULT_LOCATIONS_DELETED));
+        assertEquals("Error: The past day of the kept location should have been archived",
+                1, result.getInt(WeatherContract.RESULT_DAYS_ARCHIVED));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        TestUtilities.validateCursor("testRetention. Error validating kept location.",
+                cursor, northPoleValues);
+
+        // TEST_DATE is years ago, so its day has been rolled up all the way to a month
+        ContentValues monthValues = new ContentValues();
+        monthValues.put(WeatherContract.HistoryEntry.COLUMN_PERIOD,
+                WeatherContract.HistoryEntry.PERIOD_MONTH);
+        monthValues.put(WeatherContract.HistoryEntry.COLUMN_DAY_COUNT, 1);
+        monthValues.put(WeatherContract.HistoryEntry.COLUMN_MIN_TEMP, 65);
+        monthValues.put(WeatherContract.HistoryEntry.COLUMN_MAX_TEMP, 75);
+        monthValues.put(WeatherContract.HistoryEntry.COLUMN_MEAN_TEMP, 70);
+        monthValues.put(WeatherContract.HistoryEntry.COLUMN_WEATHER_ID, 321);
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.HistoryEntry.buildHistoryLocation(TestUtilities.TEST_LOCATION,
+                        0, System.currentTimeMillis()),
+                null, null, null, null);
+        TestUtilities.validateCursor("testRetention. Error validating the archived history.",
+                cursor, monthValues);
+    }
+
+    /*
+        This test checks the size policy: with the database far over its limit, history is
+        trimmed, the oldest periods first, and the forecast from today on is never touched.
+     */
+    public void testRetentionSizeLimit() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] forecast = new ContentValues[7];
+        for (int day = 0; day < forecast.length; day++) {
+            forecast[day] = TestUtilities.createWeatherValues(locationRowId);
+            forecast[day].put(WeatherEntry.COLUMN_DATE, today + day * DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final int historyRows = 2000;
+        db.beginTransaction();
+        try {
+            ContentValues history = new ContentValues();
+            history.put(WeatherContract.HistoryEntry.COLUMN_LOC_KEY, locationRowId);
+            history.put(WeatherContract.HistoryEntry.COLUMN_PERIOD,
+                    WeatherContract.HistoryEntry.PERIOD_MONTH);
+            history.put(WeatherContract.HistoryEntry.COLUMN_DAY_COUNT, 30);
+            history.put(WeatherContract.HistoryEntry.COLUMN_MIN_TEMP, 6500);
+            history.put(WeatherContract.HistoryEntry.COLUMN_MAX_TEMP, 7500);
+            history.put(WeatherContract.HistoryEntry.COLUMN_MEAN_TEMP, 7000);
+            history.put(WeatherContract.HistoryEntry.COLUMN_WEATHER_ID, 321);
+            for (int i = 0; i < historyRows; i++) {
+                history.put(WeatherContract.HistoryEntry.COLUMN_PERIOD_START,
+                        TestUtilities.TEST_DATE - (i + 1) * 31 * DateUtils.DAY_IN_MILLIS);
+                db.insert(WeatherContract.HistoryEntry.TABLE_NAME, null, history);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // A limit nothing could meet: trimming has to stop on its own, with the forecast intact
+        Bundle result = new WeatherRetention(0, 1, WeatherRetention.DEFAULT_BATCH_SIZE,
+                WeatherRetention.DEFAULT_VACUUM_PAGES_PER_RUN)
+                .run(db, TestUtilities.TEST_LOCATION, false);
+
+        assertTrue("Error: History should have been trimmed to make room",
+                result.getInt(WeatherContract.RESULT_HISTORY_DELETED) > 0);
+        assertEquals("Error: The forecast from today on should never be trimmed",
+                forecast.length, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        long remaining = DatabaseUtils.queryNumEntries(db,
+                WeatherContract.HistoryEntry.TABLE_NAME);
+        if (remaining > 0) {
+            // Whatever is left are the newest periods
+            Cursor cursor = db.query(WeatherContract.HistoryEntry.TABLE_NAME,
+                    new String[]{"MIN(" + WeatherContract.HistoryEntry.COLUMN_PERIOD_START + ")"},
+                    null, null, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Error: The oldest periods should have been trimmed first",
+                    TestUtilities.TEST_DATE - remaining * 31 * DateUtils.DAY_IN_MILLIS,
+                    cursor.getLong(0));
+            cursor.close();
+        }
+        db.close();
+    }
+
+    /*
+        This test stages a refresh and checks that readers keep seeing the old forecast until it
+        is published, and then only the new one from its first day on.
+     */
+    public void testStagingPublish() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] oldValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, oldValues);
+
+        // The refresh starts on the second day and covers only that day, so the old days after
+        // it must go too
+        ContentValues newValues = TestUtilities.createWeatherValues(locationRowId);
+        newValues.put(WeatherEntry.COLUMN_DATE, oldValues[1].getAsLong(WeatherEntry.COLUMN_DATE));
+        newValues.put(WeatherEntry.COLUMN_MAX_TEMP, 90);
+        newValues.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        newValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+        int staged = mContext.getContentResolver().bulkInsert(WeatherEntry.STAGING_URI,
+                new ContentValues[]{newValues});
+        assertEquals(1, staged);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: Staged rows should not be visible before they are published",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_PUBLISH_STAGING, null, null);
+        assertEquals(1, result.getInt(WeatherContract.RESULT_ROWS_PUBLISHED));
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: Only the day before the refresh and the refreshed day should remain",
+                2, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testStagingPublish. Error validating the kept day.",
+                cursor, oldValues[0]);
+        cursor.moveToNext();
+        TestUtilities.validateCurrentRecord("testStagingPublish. Error validating the new day.",
+                cursor, newValues);
+        cursor.close();
+
+        result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_PUBLISH_STAGING, null, null);
+        assertEquals("Error: Publishing should have emptied the staging table",
+                0, result.getInt(WeatherContract.RESULT_ROWS_PUBLISHED));
+    }
+
+    /*
+        This test builds the shared columnar forecast and checks that it is rebuilt by the first
+        read after the weather data changes.
+     */
+    public void testForecastColumns() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE, today + i * DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        final ForecastColumns forecast = ForecastColumns.get(mContext, TestUtilities.TEST_LOCATION);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, forecast.getCount());
+        for (int i = 0; i < forecast.getCount(); i++) {
+            assertEquals(today + i * DateUtils.DAY_IN_MILLIS, forecast.getDate(i));
+            assertEquals(321, forecast.getWeatherId(i));
+            assertEquals("Asteroids", forecast.getDescription(i));
+            assertEquals(75.0f + i, forecast.getHigh(i), 0.001f);
+            assertEquals(65.0f - i, forecast.getLow(i), 0.001f);
+        }
+        assertEquals(0, forecast.indexOfFirstDayFrom(today));
+        assertEquals(2, forecast.indexOfDate(today + 2 * DateUtils.DAY_IN_MILLIS));
+        assertEquals(-1, forecast.indexOfDate(today + 1));
+        assertSame("Error: The forecast should be shared until the data changes",
+                forecast, ForecastColumns.get(mContext, TestUtilities.TEST_LOCATION));
+
+        ContentValues updatedValues = new ContentValues();
+        updatedValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80.5);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, updatedValues, null, null);
+
+        // Read straight after the write, as the consumers a sync wakes up do
+        assertNotSame("Error: The forecast was shared after the data changed",
+                forecast, ForecastColumns.get(mContext, TestUtilities.TEST_LOCATION));
+        assertEquals(80.5f, ForecastColumns.get(mContext, TestUtilities.TEST_LOCATION).getHigh(0),
+                0.001f);
+    }
+
+    /*
+        This test checks that location reads of the same shape share one statement, whatever
+        location, dates and limit they ask for, and that the bound arguments still filter.
+     */
+    public void testReadStatements() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        long secondDate = weatherValues[1].getAsLong(WeatherEntry.COLUMN_DATE);
+
+        WeatherProvider provider = getWeatherProvider();
+        provider.getReadStatements().clear();
+        WeatherProvider.ReadQuery first = provider.buildReadQuery(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        secondDate, 2), ForecastColumns.COLUMNS, null, null, null);
+        WeatherProvider.ReadQuery second = provider.buildReadQuery(
+                WeatherEntry.buildWeatherLocationWithStartDate("London,GB", secondDate + 1, 5),
+                ForecastColumns.COLUMNS.clone(), null, null, null);
+        assertSame("Error: Reads of the same shape should reuse the statement",
+                first.mSql, second.mSql);
+
+        Cursor cursor = provider.runReadQuery(first);
+        assertEquals("Error: The bound limit was not applied", 2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(secondDate, cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_DATE)));
+        cursor.close();
+
+        cursor = provider.runReadQuery(provider.buildReadQuery(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, secondDate),
+                null, null, null, null));
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testReadStatements. Error validating the day.",
+                cursor, weatherValues[1]);
+        cursor.close();
+    }
+
+    /*
+        This test exports the weather table through the provider's pipe, empties it and imports
+        the export back, in both formats.
+     */
+    public void testExportImport() throws IOException {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        final ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        for (String format : new String[]{WeatherContract.TransferEntry.FORMAT_CSV,
+                WeatherContract.TransferEntry.FORMAT_LDJSON}) {
+            Uri transferUri = WeatherContract.TransferEntry.buildTransferUri(
+                    WeatherEntry.TABLE_NAME, format);
+            assertEquals(WeatherTransfer.getType(format),
+                    mContext.getContentResolver().getType(transferUri));
+
+            String exported = readAll(mContext.getContentResolver().openInputStream(transferUri));
+            int headerLines = WeatherContract.TransferEntry.FORMAT_CSV.equals(format) ? 1 : 0;
+            assertEquals("Error: The " + format + " export has the wrong number of lines",
+                    BULK_INSERT_RECORDS_TO_INSERT + headerLines, exported.split("\n").length);
+
+            mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+            OutputStream out = mContext.getContentResolver().openOutputStream(transferUri);
+            out.write(exported.getBytes("UTF-8"));
+            out.close();
+
+            // The import runs on the provider's own thread
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                            null, null, null, null);
+                    int count = cursor.getCount();
+                    cursor.close();
+                    return count == weatherValues.length;
+                }
+            }.run();
+
+            Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                    null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            for (ContentValues values : weatherValues) {
+                cursor.moveToNext();
+                TestUtilities.validateCurrentRecord("testExportImport. Error validating an " +
+                        format + " row.", cursor, values);
+            }
+            cursor.close();
+        }
+    }
+
+    /*
+        This test checks that an import naming a column the export doesn't write is refused
+        before anything reaches the database, in both formats.
+     */
+    public void testImportRejectsUnknownColumns() throws IOException {
+        String[][] inputs = {
+                {WeatherContract.TransferEntry.FORMAT_CSV,
+                        "location_setting,city_name,_id\n99705,North Pole,7\n"},
+                {WeatherContract.TransferEntry.FORMAT_LDJSON,
+                        "{\"location_setting\":\"99705\",\"coord_lat) VALUES (0);--\":1}\n"}
+        };
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            for (String[] input : inputs) {
+                try {
+                    WeatherTransfer.importRows(db, LocationEntry.TABLE_NAME, input[0],
+                            new ByteArrayInputStream(input[1].getBytes("UTF-8")));
+                    fail("Error: The " + input[0] + " import took an unknown column");
+                } catch (IOException expected) {
+                    assertTrue(expected.getMessage().startsWith("Unknown column"));
+                }
+                assertEquals("Error: The refused " + input[0] + " import inserted a location",
+                        0, DatabaseUtils.queryNumEntries(db, LocationEntry.TABLE_NAME));
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        StringBuilder text = new StringBuilder();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                text.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return text.toString();
+    }
+
+    /*
+        This test reads today's forecast through WeatherProvider.call() and checks that a write
+        through the provider refreshes the in-memory copy.
+     */
+    public void testGetToday() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+
+        Bundle today = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_TODAY, TestUtilities.TEST_LOCATION, null);
+        assertNull("Error: There should be no forecast for today yet", today);
+
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        weatherValues.put(WeatherEntry.COLUMN_DATE, System.currentTimeMillis());
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        today = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_TODAY, TestUtilities.TEST_LOCATION, null);
+        assertNotNull("Error: Today's forecast was not returned", today);
+        assertEquals(321, today.getInt(WeatherEntry.COLUMN_WEATHER_ID));
+        assertEquals("Asteroids", today.getString(WeatherEntry.COLUMN_SHORT_DESC));
+        assertEquals(75.0, today.getDouble(WeatherEntry.COLUMN_MAX_TEMP), 0.001);
+        assertEquals(65.0, today.getDouble(WeatherEntry.COLUMN_MIN_TEMP), 0.001);
+
+        ContentValues updatedValues = new ContentValues();
+        updatedValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80.5);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, updatedValues, null, null);
+
+        today = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_TODAY, TestUtilities.TEST_LOCATION, null);
+        assertEquals("Error: Today's forecast was not refreshed by the update",
+                80.5, today.getDouble(WeatherEntry.COLUMN_MAX_TEMP), 0.001);
+    }
+
+    /*
+        This test checks that the provider records its calls per route and operation, and that
+        they show up in its dump.
+     */
+    public void testProviderStats() {
+        WeatherProviderStats stats = getWeatherProvider().getStats();
+        stats.reset();
+
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        for (int i = 0; i < 2; i++) {
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                    null, null, null, null);
+            cursor.close();
+        }
+
+        assertEquals(1, stats.getCount(WeatherContract.PATH_LOCATION,
+                WeatherProviderStats.OP_INSERT));
+        assertEquals(1, stats.getCount(WeatherContract.PATH_WEATHER,
+                WeatherProviderStats.OP_BULK_INSERT));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, stats.getRows(WeatherContract.PATH_WEATHER,
+                WeatherProviderStats.OP_BULK_INSERT));
+        assertEquals(2, stats.getCount(WeatherContract.PATH_WEATHER + "/*",
+                WeatherProviderStats.OP_QUERY));
+        assertEquals(2 * BULK_INSERT_RECORDS_TO_INSERT, stats.getRows(
+                WeatherContract.PATH_WEATHER + "/*", WeatherProviderStats.OP_QUERY));
+
+        StringWriter dump = new StringWriter();
+        getWeatherProvider().dump(null, new PrintWriter(dump), null);
+        assertTrue("Error: The dump doesn't list the weather/* queries",
+                dump.toString().contains("weather/* query: count=2"));
+    }
+
+    static WeatherProvider getWeatherProvider(Context context) {
+        ContentProviderClient client = context.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        WeatherProvider provider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        return provider;
+    }
+
+    private WeatherProvider getWeatherProvider() {
+        return getWeatherProvider(mContext);
+    }
 }
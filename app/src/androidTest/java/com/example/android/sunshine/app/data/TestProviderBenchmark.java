@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SummaryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Throughput and latency of every provider operation on synthetic datasets, from the single
+    city the app normally holds up to 500 locations with a year of days each.
+
+    For each dataset size this measures ops/sec and p50/p99/max latency of bulkInsert, insert,
+    query (every read route, with reads the query cache answered reported apart from those that
+    went to the database), update and delete, reads and writes running against each other, and
+    the time from a write until a registered ContentObserver hears about it.  The list reload and
+    widget reads are also timed inside the provider, with their statements rebuilt on every call
+    and reused, and with the location join in place of the location key, to show what each of
+    those saves per call.  Every result is
+    logged and written as JSON to files/provider-benchmark.json in the app's data directory.
+
+    This is a large test: run it on its own, not as part of the quick suite, e.g. with
+    -e size large, and expect it to take several minutes on a device.
+ */
+@LargeTest
+public class TestProviderBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestProviderBenchmark.class.getSimpleName();
+
+    static final String RESULTS_FILE = "provider-benchmark.json";
+
+    // {locations, days per location}
+    private static final int[][] DATASETS = {
+            {1, 14},
+            {1, 365},
+            {50, 14},
+            {50, 90},
+            {500, 14},
+            {500, 365}
+    };
+
+    private static final int READ_SAMPLES = 200;
+    private static final int WRITE_SAMPLES = 100;
+    private static final int CONTENTION_WRITES = 20;
+    private static final int NOTIFY_SAMPLES = 50;
+    private static final long NOTIFY_TIMEOUT_MILLIS = 1000;
+
+    private static final String LOCATION_PREFIX = "bench-";
+
+    private final Random mRandom = new Random(42);
+    private JSONArray mResults;
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResults = new JSONArray();
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testProviderBenchmark() throws Exception {
+        for (int[] dataset : DATASETS) {
+            deleteAllRecords();
+            runDataset(dataset[0], dataset[1]);
+        }
+        writeResults();
+    }
+
+    private void runDataset(int locations, int days) throws Exception {
+        Dataset dataset = new Dataset(locations, days);
+        ContentResolver resolver = mContext.getContentResolver();
+
+        // bulkInsert: building the dataset, one call per location
+        Timings bulkInsert = new Timings();
+        for (int i = 0; i < locations; i++) {
+            ContentValues[] values = createWeatherValues(dataset.mLocationIds[i], 0, days);
+            long start = System.nanoTime();
+            int inserted = resolver.bulkInsert(WeatherEntry.CONTENT_URI, values);
+            bulkInsert.add(System.nanoTime() - start);
+            assertEquals("Error: bulkInsert didn't insert every row", days, inserted);
+        }
+        report(dataset, "bulkInsert weather (" + days + " rows)", bulkInsert);
+
+        timeReads(dataset, "query weather/*", new Read() {
+            @Override
+            public Cursor run(Dataset dataset) {
+                return mContext.getContentResolver().query(
+                        WeatherEntry.buildWeatherLocationWithStartDate(
+                                dataset.randomLocation(mRandom), mToday),
+                        null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            }
+        });
+        timeReads(dataset, "query weather/*/#", new Read() {
+            @Override
+            public Cursor run(Dataset dataset) {
+                return mContext.getContentResolver().query(
+                        WeatherEntry.buildWeatherLocationWithDate(
+                                dataset.randomLocation(mRandom), dataset.randomDate(mRandom)),
+                        null, null, null, null);
+            }
+        });
+        timeReads(dataset, "query weather/*/summary", new Read() {
+            @Override
+            public Cursor run(Dataset dataset) {
+                return mContext.getContentResolver().query(
+                        SummaryEntry.buildSummaryUri(dataset.randomLocation(mRandom),
+                                mToday, mToday + 7 * DateUtils.DAY_IN_MILLIS),
+                        null, null, null, null);
+            }
+        });
+        timeReads(dataset, "query weather", new Read() {
+            @Override
+            public Cursor run(Dataset dataset) {
+                long locationId = dataset.mLocationIds[mRandom.nextInt(dataset.mLocations)];
+                return mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                        singleRowSelection(),
+                        singleRowArgs(locationId, mRandom.nextInt(dataset.mDays)), null);
+            }
+        });
+        timeReads(dataset, "query location", new Read() {
+            @Override
+            public Cursor run(Dataset dataset) {
+                return mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                        LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{dataset.randomLocation(mRandom)}, null);
+            }
+        });
+
+        measureReadStatements(dataset);
+
+        // insert, update and delete single rows past the end of the dataset
+        Timings insert = new Timings();
+        Timings update = new Timings();
+        Timings delete = new Timings();
+        long[] insertedIds = new long[WRITE_SAMPLES];
+        for (int i = 0; i < WRITE_SAMPLES; i++) {
+            insertedIds[i] = dataset.mLocationIds[mRandom.nextInt(locations)];
+            ContentValues values = createWeatherValues(insertedIds[i], days + i, 1)[0];
+            long start = System.nanoTime();
+            resolver.insert(WeatherEntry.CONTENT_URI, values);
+            insert.add(System.nanoTime() - start);
+        }
+        for (int i = 0; i < WRITE_SAMPLES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 80 + i % 10);
+            long start = System.nanoTime();
+            resolver.update(WeatherEntry.CONTENT_URI, values, singleRowSelection(),
+                    singleRowArgs(insertedIds[i], days + i));
+            update.add(System.nanoTime() - start);
+        }
+        for (int i = 0; i < WRITE_SAMPLES; i++) {
+            long start = System.nanoTime();
+            resolver.delete(WeatherEntry.CONTENT_URI, singleRowSelection(),
+                    singleRowArgs(insertedIds[i], days + i));
+            delete.add(System.nanoTime() - start);
+        }
+        report(dataset, "insert weather", insert);
+        report(dataset, "update weather", update);
+        report(dataset, "delete weather", delete);
+
+        measureContention(dataset);
+        measureNotifications(dataset);
+    }
+
+    /*
+        Per call cost of the two reads every refresh triggers, timed on the provider itself so
+        neither the binder nor the query cache is in the way: the list reload (the forecast from
+        today on) and the widget's single day.  Each is timed building its statement from
+        scratch and reusing it, both for the build alone and for build and run together, and
+        run once more joining the location table instead of filtering its key.
+     */
+    private void measureReadStatements(Dataset dataset) throws JSONException {
+        final WeatherProvider provider = TestProvider.getWeatherProvider(mContext);
+        final WeatherReadStatements statements = provider.getReadStatements();
+        String[][] paths = {{"list", "0"}, {"widget", "1"}};
+        for (String[] path : paths) {
+            int limit = Integer.parseInt(path[1]);
+            Timings buildRebuilt = new Timings();
+            Timings buildReused = new Timings();
+            Timings runRebuilt = new Timings();
+            Timings runReused = new Timings();
+            Timings runJoined = new Timings();
+            for (int i = 0; i < READ_SAMPLES; i++) {
+                String location = dataset.randomLocation(mRandom);
+                Uri uri = limit > 0 ?
+                        WeatherEntry.buildWeatherLocationWithStartDate(location, mToday, limit) :
+                        WeatherEntry.buildWeatherLocationWithStartDate(location, mToday);
+
+                statements.clear();
+                long start = System.nanoTime();
+                provider.buildReadQuery(uri,
+                        ForecastColumns.COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                buildRebuilt.add(System.nanoTime() - start);
+
+                start = System.nanoTime();
+                provider.buildReadQuery(uri,
+                        ForecastColumns.COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                buildReused.add(System.nanoTime() - start);
+
+                statements.clear();
+                start = System.nanoTime();
+                runRead(provider, uri);
+                runRebuilt.add(System.nanoTime() - start);
+
+                start = System.nanoTime();
+                runRead(provider, uri);
+                runReused.add(System.nanoTime() - start);
+
+                provider.setLocationKeyReads(false);
+                try {
+                    runRead(provider, uri);
+                    start = System.nanoTime();
+                    runRead(provider, uri);
+                    runJoined.add(System.nanoTime() - start);
+                } finally {
+                    provider.setLocationKeyReads(true);
+                }
+            }
+            report(dataset, "build " + path[0] + " read, statement rebuilt", buildRebuilt);
+            report(dataset, "build " + path[0] + " read, statement reused", buildReused);
+            report(dataset, "run " + path[0] + " read, statement rebuilt", runRebuilt);
+            report(dataset, "run " + path[0] + " read, statement reused", runReused);
+            report(dataset, "run " + path[0] + " read, joined to location", runJoined);
+        }
+    }
+
+    private static void runRead(WeatherProvider provider, Uri uri) {
+        Cursor cursor = provider.runReadQuery(provider.buildReadQuery(uri,
+                ForecastColumns.COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC"));
+        cursor.getCount();
+        cursor.close();
+    }
+
+    /*
+        One thread keeps reading forecasts while this one rewrites whole locations, as a sync
+        does while the UI and widgets read.
+     */
+    private void measureContention(final Dataset dataset) throws Exception {
+        final Timings reads = new Timings();
+        final Random readerRandom = new Random(7);
+        final boolean[] writing = {true};
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (writing) {
+                        if (!writing[0]) return;
+                    }
+                    long start = System.nanoTime();
+                    Cursor cursor = mContext.getContentResolver().query(
+                            WeatherEntry.buildWeatherLocationWithStartDate(
+                                    dataset.randomLocation(readerRandom), mToday),
+                            null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                    cursor.getCount();
+                    cursor.close();
+                    synchronized (reads) {
+                        reads.add(System.nanoTime() - start);
+                    }
+                }
+            }
+        }, "BenchmarkReader");
+
+        Timings writes = new Timings();
+        reader.start();
+        try {
+            for (int i = 0; i < CONTENTION_WRITES; i++) {
+                long locationId = dataset.mLocationIds[mRandom.nextInt(dataset.mLocations)];
+                ContentValues[] values = createWeatherValues(locationId, 0, dataset.mDays);
+                long start = System.nanoTime();
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+                writes.add(System.nanoTime() - start);
+            }
+        } finally {
+            synchronized (writing) {
+                writing[0] = false;
+            }
+            reader.join();
+        }
+        report(dataset, "bulkInsert weather while reading", writes);
+        report(dataset, "query weather/* while writing", reads);
+    }
+
+    /*
+        Time from the start of a write until a ContentObserver on the weather URI is called.
+        Minus the plain update latency above, that is what each notification costs.
+     */
+    private void measureNotifications(Dataset dataset) throws Exception {
+        HandlerThread observerThread = new HandlerThread("BenchmarkObserver");
+        observerThread.start();
+        final Semaphore changes = new Semaphore(0);
+        ContentObserver observer = new ContentObserver(new Handler(observerThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changes.release();
+            }
+        };
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(WeatherEntry.CONTENT_URI, true, observer);
+
+        Timings notify = new Timings();
+        try {
+            for (int i = 0; i < NOTIFY_SAMPLES; i++) {
+                long locationId = dataset.mLocationIds[mRandom.nextInt(dataset.mLocations)];
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, 70 + i % 10);
+                long start = System.nanoTime();
+                resolver.update(WeatherEntry.CONTENT_URI, values, singleRowSelection(),
+                        singleRowArgs(locationId, i % dataset.mDays));
+                assertTrue("Error: The weather observer wasn't notified",
+                        changes.tryAcquire(NOTIFY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+                notify.add(System.nanoTime() - start);
+                // A single write may be reported more than once, don't let it count for the next
+                changes.drainPermits();
+            }
+        } finally {
+            resolver.unregisterContentObserver(observer);
+            observerThread.quit();
+        }
+        report(dataset, "update weather until notified", notify);
+    }
+
+    private interface Read {
+        Cursor run(Dataset dataset);
+    }
+
+    /*
+        Times the read, reporting the samples that went to the database apart from those the
+        provider's query cache answered, told apart by its hit count.  Routes the cache doesn't
+        hold only have the first.
+     */
+    private void timeReads(Dataset dataset, String operation, Read read) throws JSONException {
+        WeatherProvider provider = TestProvider.getWeatherProvider(mContext);
+        Timings hits = new Timings();
+        Timings misses = new Timings();
+        for (int i = 0; i < READ_SAMPLES; i++) {
+            long hitCount = provider.getQueryCacheHitCount();
+            long start = System.nanoTime();
+            Cursor cursor = read.run(dataset);
+            // The query only runs once the cursor is filled
+            cursor.getCount();
+            cursor.close();
+            long nanos = System.nanoTime() - start;
+            if (provider.getQueryCacheHitCount() > hitCount) {
+                hits.add(nanos);
+            } else {
+                misses.add(nanos);
+            }
+        }
+        report(dataset, operation + ", cache miss", misses);
+        if (hits.mCount > 0) {
+            report(dataset, operation + ", cache hit", hits);
+        }
+    }
+
+    private static String singleRowSelection() {
+        return WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?";
+    }
+
+    private String[] singleRowArgs(long locationId, int day) {
+        return new String[]{Long.toString(locationId),
+                Long.toString(mToday + day * DateUtils.DAY_IN_MILLIS)};
+    }
+
+    private ContentValues[] createWeatherValues(long locationId, int firstDay, int days) {
+        ContentValues[] values = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationId);
+            values[i].put(WeatherEntry.COLUMN_DATE,
+                    mToday + (firstDay + i) * DateUtils.DAY_IN_MILLIS);
+            values[i].put(WeatherEntry.COLUMN_WEATHER_ID, 200 + mRandom.nextInt(600));
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, 10 + mRandom.nextInt(250) / 10.0);
+            values[i].put(WeatherEntry.COLUMN_MIN_TEMP, -10 + mRandom.nextInt(200) / 10.0);
+        }
+        return values;
+    }
+
+    /*
+        The locations of one dataset size.  Weather rows are added by the benchmark itself, since
+        inserting them is the first thing it measures.
+     */
+    private class Dataset {
+        final int mLocations;
+        final int mDays;
+        final String[] mLocationSettings;
+        final long[] mLocationIds;
+
+        Dataset(int locations, int days) {
+            mLocations = locations;
+            mDays = days;
+            mLocationSettings = new String[locations];
+            mLocationIds = new long[locations];
+            for (int i = 0; i < locations; i++) {
+                ContentValues values = TestUtilities.createNorthPoleLocationValues();
+                mLocationSettings[i] = LOCATION_PREFIX + i;
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, mLocationSettings[i]);
+                Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+                mLocationIds[i] = Long.parseLong(uri.getLastPathSegment());
+            }
+        }
+
+        String randomLocation(Random random) {
+            return mLocationSettings[random.nextInt(mLocations)];
+        }
+
+        long randomDate(Random random) {
+            return mToday + random.nextInt(mDays) * DateUtils.DAY_IN_MILLIS;
+        }
+    }
+
+    /*
+        Latency samples of one operation, in nanoseconds.
+     */
+    private static class Timings {
+        private long[] mSamples = new long[64];
+        private int mCount;
+        private long mTotal;
+
+        void add(long nanos) {
+            if (mCount == mSamples.length) {
+                mSamples = Arrays.copyOf(mSamples, mCount * 2);
+            }
+            mSamples[mCount++] = nanos;
+            mTotal += nanos;
+        }
+
+        double opsPerSecond() {
+            return mTotal == 0 ? 0 : mCount * 1e9 / mTotal;
+        }
+
+        double percentileMillis(double percentile) {
+            if (mCount == 0) return 0;
+            long[] sorted = Arrays.copyOf(mSamples, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * mCount) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    private void report(Dataset dataset, String operation, Timings timings) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("locations", dataset.mLocations);
+        result.put("days", dataset.mDays);
+        result.put("operation", operation);
+        result.put("count", timings.mCount);
+        result.put("ops_per_sec", timings.opsPerSecond());
+        result.put("p50_ms", timings.percentileMillis(50));
+        result.put("p99_ms", timings.percentileMillis(99));
+        result.put("max_ms", timings.percentileMillis(100));
+        mResults.put(result);
+        Log.i(LOG_TAG, result.toString());
+    }
+
+    private void writeResults() throws JSONException, IOException {
+        JSONObject report = new JSONObject();
+        report.put("device", Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("results", mResults);
+
+        File file = new File(mContext.getFilesDir(), RESULTS_FILE);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(report.toString(2).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Log.i(LOG_TAG, "Benchmark results written to " + file.getAbsolutePath());
+    }
+}
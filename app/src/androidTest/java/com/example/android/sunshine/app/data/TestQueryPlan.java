@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SummaryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.regex.Pattern;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the SQL each WeatherProvider route actually builds, against a
+    populated database, and fails when a route stops using the index it was written for.  When
+    you add a route or change a selection, add its expected plan here.
+ */
+public class TestQueryPlan extends AndroidTestCase {
+
+    private static final int LOCATION_COUNT = 3;
+    private static final int DAYS_PER_LOCATION = 14;
+
+    private static final String WEATHER_INDEX = "sqlite_autoindex_weather_1";
+    private static final String LOCATION_INDEX = "sqlite_autoindex_location_1";
+
+    private WeatherProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = TestProvider.getWeatherProvider(mContext);
+        deleteAllRecords();
+
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, TestUtilities.TEST_LOCATION + i);
+            Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                    locationValues);
+            long locationRowId = Long.parseLong(locationUri.getLastPathSegment());
+
+            ContentValues[] weatherValues = new ContentValues[DAYS_PER_LOCATION];
+            for (int day = 0; day < DAYS_PER_LOCATION; day++) {
+                weatherValues[day] = TestUtilities.createWeatherValues(locationRowId);
+                weatherValues[day].put(WeatherEntry.COLUMN_DATE,
+                        TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+            }
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    // "weather"
+    public void testWeatherPlan() {
+        String plan = mProvider.explainQueryPlan(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{"1"}, null);
+
+        assertSearch("WEATHER", plan, WeatherEntry.TABLE_NAME,
+                "INDEX " + WEATHER_INDEX + " (" + WeatherEntry.COLUMN_LOC_KEY + "=?");
+        assertSearch("WEATHER", plan, WeatherContract.ConditionEntry.TABLE_NAME,
+                "INTEGER PRIMARY KEY");
+    }
+
+    // "weather/*"
+    public void testWeatherWithLocationPlan() {
+        String location = TestUtilities.TEST_LOCATION + 0;
+
+        String plan = mProvider.explainQueryPlan(WeatherEntry.buildWeatherLocation(location),
+                null, null, null, null);
+        assertLocationJoin("WEATHER_WITH_LOCATION", plan,
+                WeatherEntry.COLUMN_LOC_KEY + "=?");
+
+        plan = mProvider.explainQueryPlan(
+                WeatherEntry.buildWeatherLocationWithStartDate(location, TestUtilities.TEST_DATE),
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertLocationJoin("WEATHER_WITH_LOCATION with a start date", plan,
+                WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + ">?");
+        assertNoTempSort("WEATHER_WITH_LOCATION with a start date", plan);
+
+        plan = mProvider.explainQueryPlan(
+                WeatherEntry.buildWeatherLocationAfterDate(location, TestUtilities.TEST_DATE, 7),
+                null, null, null, null);
+        assertLocationJoin("WEATHER_WITH_LOCATION after a date", plan,
+                WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + ">?");
+        assertNoTempSort("WEATHER_WITH_LOCATION after a date", plan);
+    }
+
+    // "weather/*/#"
+    public void testWeatherWithLocationAndDatePlan() {
+        String plan = mProvider.explainQueryPlan(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION + 0,
+                        TestUtilities.TEST_DATE),
+                null, null, null, null);
+        assertLocationJoin("WEATHER_WITH_LOCATION_AND_DATE", plan,
+                WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + "=?");
+    }
+
+    // "weather/*" and "weather/*/#" projecting only weather columns and the location setting
+    public void testLocationKeyPlan() {
+        String location = TestUtilities.TEST_LOCATION + 1;
+        String[] projection = {
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_LOCATION_SETTING
+        };
+        Uri todayUri = WeatherEntry.buildWeatherLocationWithStartDate(location,
+                TestUtilities.TEST_DATE + DateUtils.DAY_IN_MILLIS, 1);
+
+        String plan = mProvider.explainQueryPlan(todayUri, projection, null, null, null);
+        assertLocationKey("WEATHER_WITH_LOCATION with a location key", plan,
+                WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + ">?");
+        assertNoTempSort("WEATHER_WITH_LOCATION with a location key", plan);
+
+        plan = mProvider.explainQueryPlan(
+                WeatherEntry.buildWeatherLocationWithDate(location, TestUtilities.TEST_DATE),
+                projection, null, null, null);
+        assertLocationKey("WEATHER_WITH_LOCATION_AND_DATE with a location key", plan,
+                WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + "=?");
+
+        // Both plans read the same row
+        Cursor keyed = mProvider.runReadQuery(
+                mProvider.buildReadQuery(todayUri, projection, null, null, null));
+        mProvider.setLocationKeyReads(false);
+        Cursor joined;
+        try {
+            joined = mProvider.runReadQuery(
+                    mProvider.buildReadQuery(todayUri, projection, null, null, null));
+        } finally {
+            mProvider.setLocationKeyReads(true);
+        }
+        assertTrue(keyed.moveToFirst());
+        assertTrue(joined.moveToFirst());
+        assertEquals(1, keyed.getCount());
+        for (int i = 0; i < projection.length; i++) {
+            assertEquals("Error: The location key read differs in " + projection[i],
+                    joined.getString(i), keyed.getString(i));
+        }
+        assertEquals(location, keyed.getString(2));
+        keyed.close();
+        joined.close();
+
+        // Projecting the city needs the join again
+        plan = mProvider.explainQueryPlan(todayUri,
+                new String[]{WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME},
+                null, null, null);
+        assertLocationJoin("WEATHER_WITH_LOCATION projecting the city", plan,
+                WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + ">?");
+    }
+
+    // "weather/*/summary"
+    public void testWeatherSummaryPlan() {
+        String plan = mProvider.explainQueryPlan(
+                SummaryEntry.buildSummaryUri(TestUtilities.TEST_LOCATION + 0,
+                        TestUtilities.TEST_DATE,
+                        TestUtilities.TEST_DATE + 7 * DateUtils.DAY_IN_MILLIS),
+                null, null, null, null);
+
+        assertSearch("WEATHER_SUMMARY", plan, LocationEntry.TABLE_NAME,
+                "INDEX " + LOCATION_INDEX + " (" + LocationEntry.COLUMN_LOCATION_SETTING + "=?)");
+        assertSearch("WEATHER_SUMMARY", plan, WeatherEntry.TABLE_NAME,
+                "INDEX " + WEATHER_INDEX + " (" + WeatherEntry.COLUMN_LOC_KEY + "=? AND " +
+                        WeatherEntry.COLUMN_DATE + ">? AND " + WeatherEntry.COLUMN_DATE + "<?)");
+        assertNoScan("WEATHER_SUMMARY", plan, WeatherEntry.TABLE_NAME);
+    }
+
+    // "history/*"
+    public void testHistoryWithLocationPlan() {
+        String plan = mProvider.explainQueryPlan(
+                WeatherContract.HistoryEntry.buildHistoryLocation(TestUtilities.TEST_LOCATION + 0,
+                        0, TestUtilities.TEST_DATE),
+                null, null, null, null);
+
+        assertSearch("HISTORY_WITH_LOCATION", plan, WeatherContract.HistoryEntry.TABLE_NAME,
+                "INDEX sqlite_autoindex_history_1 (" +
+                        WeatherContract.HistoryEntry.COLUMN_LOC_KEY + "=? AND " +
+                        WeatherContract.HistoryEntry.COLUMN_PERIOD_START + ">? AND " +
+                        WeatherContract.HistoryEntry.COLUMN_PERIOD_START + "<?)");
+        assertNoScan("HISTORY_WITH_LOCATION", plan, WeatherContract.HistoryEntry.TABLE_NAME);
+        assertNoTempSort("HISTORY_WITH_LOCATION", plan);
+    }
+
+    // "location", as the sync adapter looks up a location setting
+    public void testLocationPlan() {
+        String plan = mProvider.explainQueryPlan(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION + 0}, null);
+
+        assertSearch("LOCATION", plan, LocationEntry.TABLE_NAME,
+                "INDEX " + LOCATION_INDEX + " (" + LocationEntry.COLUMN_LOCATION_SETTING + "=?)");
+        assertNoScan("LOCATION", plan, LocationEntry.TABLE_NAME);
+    }
+
+    /*
+        The joined routes look the location up by its setting first, then read only that
+        location's weather rows through the weather index.
+     */
+    private static void assertLocationJoin(String route, String plan, String weatherIndexTerms) {
+        assertSearch(route, plan, LocationEntry.TABLE_NAME,
+                "INDEX " + LOCATION_INDEX + " (" + LocationEntry.COLUMN_LOCATION_SETTING + "=?)");
+        assertSearch(route, plan, WeatherEntry.TABLE_NAME,
+                "INDEX " + WEATHER_INDEX + " (" + weatherIndexTerms);
+        assertSearch(route, plan, WeatherContract.ConditionEntry.TABLE_NAME,
+                "INTEGER PRIMARY KEY");
+        assertNoScan(route, plan, WeatherEntry.TABLE_NAME);
+        assertNoScan(route, plan, LocationEntry.TABLE_NAME);
+    }
+
+    /*
+        The location key routes read the weather index directly and never touch the location
+        table.
+     */
+    private static void assertLocationKey(String route, String plan, String weatherIndexTerms) {
+        assertSearch(route, plan, WeatherEntry.TABLE_NAME,
+                "INDEX " + WEATHER_INDEX + " (" + weatherIndexTerms);
+        assertNoScan(route, plan, WeatherEntry.TABLE_NAME);
+        Pattern search = step("SEARCH", LocationEntry.TABLE_NAME);
+        for (String line : plan.split("\n")) {
+            assertFalse("Error: The " + route + " route reads the location table. Plan:\n" +
+                    plan, search.matcher(line).find());
+        }
+        assertNoScan(route, plan, LocationEntry.TABLE_NAME);
+    }
+
+    // Older SQLite versions write "SEARCH TABLE weather", newer ones "SEARCH weather"
+    private static Pattern step(String operation, String table) {
+        return Pattern.compile("^" + operation + " (TABLE )?" + table + "\\b");
+    }
+
+    private static void assertSearch(String route, String plan, String table, String using) {
+        Pattern search = step("SEARCH", table);
+        for (String line : plan.split("\n")) {
+            if (search.matcher(line).find() && line.contains(using)) {
+                return;
+            }
+        }
+        fail("Error: The " + route + " route doesn't search " + table + " using " + using +
+                ". Plan:\n" + plan);
+    }
+
+    private static void assertNoScan(String route, String plan, String table) {
+        Pattern scan = step("SCAN", table);
+        for (String line : plan.split("\n")) {
+            assertFalse("Error: The " + route + " route scans the " + table + " table. Plan:\n" +
+                    plan, scan.matcher(line).find());
+        }
+    }
+
+    private static void assertNoTempSort(String route, String plan) {
+        assertFalse("Error: The " + route + " route sorts its rows instead of reading them in " +
+                "index order. Plan:\n" + plan, plan.contains("USE TEMP B-TREE FOR ORDER BY"));
+    }
+}
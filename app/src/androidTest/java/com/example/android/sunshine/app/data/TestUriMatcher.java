@@ -34,8 +34,14 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    private static final Uri TEST_WEATHER_SUMMARY = WeatherContract.SummaryEntry.buildSummaryUri(LOCATION_QUERY, TEST_DATE, TEST_DATE);
+    private static final Uri TEST_HISTORY_DIR = WeatherContract.HistoryEntry.CONTENT_URI;
+    private static final Uri TEST_HISTORY_WITH_LOCATION_DIR = WeatherContract.HistoryEntry.buildHistoryLocation(LOCATION_QUERY, TEST_DATE, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_STAGING_DIR = WeatherContract.WeatherEntry.STAGING_URI;
+    private static final Uri TEST_TRANSFER = WeatherContract.TransferEntry.buildTransferUri(
+            WeatherContract.WeatherEntry.TABLE_NAME, WeatherContract.TransferEntry.FORMAT_CSV);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -51,7 +57,17 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_SUMMARY), WeatherProvider.WEATHER_SUMMARY);
+        assertEquals("Error: The HISTORY URI was matched incorrectly.",
+                testMatcher.match(TEST_HISTORY_DIR), WeatherProvider.HISTORY);
+        assertEquals("Error: The HISTORY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HISTORY_WITH_LOCATION_DIR), WeatherProvider.HISTORY_WITH_LOCATION);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The STAGING URI was matched incorrectly.",
+                testMatcher.match(TEST_STAGING_DIR), WeatherProvider.STAGING);
+        assertEquals("Error: The TRANSFER URI was matched incorrectly.",
+                testMatcher.match(TEST_TRANSFER), WeatherProvider.TRANSFER);
     }
 }
@@ -15,12 +15,14 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.test.AndroidTestCase;
@@ -111,6 +113,37 @@ public class TestUtilities extends AndroidTestCase {
         return locationRowId;
     }
 
+    /*
+        Writes a location and its weather straight to the database file, with a connection of its
+        own that is closed again, and closes the provider's connection too.  The provider's next
+        read then opens the database itself, as it does at a cold start.  Used by tests outside
+        this package that must not warm the provider up while seeding it.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static void seedDatabase(Context context, ContentValues locationValues,
+                                    ContentValues[] weatherValues) {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(context);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long locationRowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                    locationValues);
+            assertTrue("Error: Failure to seed the location", locationRowId != -1);
+            for (ContentValues values : weatherValues) {
+                ContentValues row = new ContentValues(values);
+                row.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+                assertTrue("Error: Failure to seed the weather", db.insert(
+                        WeatherContract.WeatherEntry.TABLE_NAME, null,
+                        WeatherRowCodec.encode(db, row)) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            dbHelper.close();
+        }
+        TestProvider.getWeatherProvider(context).shutdown();
+    }
+
     /*
         Students: The functions we provide inside of TestProvider use this utility class to test
         the ContentObserver callbacks using the PollingCheck class that we grabbed from the Android
@@ -42,4 +42,28 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    /*
+        A limit that isn't a whole number of rows is the caller's mistake, and says so instead of
+        surfacing as a NumberFormatException or being dropped.
+     */
+    public void testGetLimitFromUri() {
+        Uri locationUri = WeatherContract.WeatherEntry.buildWeatherLocation(TEST_WEATHER_LOCATION);
+        assertEquals("Error: A uri without a limit should have none",
+                0, WeatherContract.WeatherEntry.getLimitFromUri(locationUri));
+        assertEquals("Error: The limit was not read back", 7,
+                WeatherContract.WeatherEntry.getLimitFromUri(
+                        WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, 7)));
+
+        for (String limit : new String[]{"abc", "-1", "2147483648"}) {
+            Uri uri = locationUri.buildUpon()
+                    .appendQueryParameter(WeatherContract.WeatherEntry.PARAM_LIMIT, limit).build();
+            try {
+                WeatherContract.WeatherEntry.getLimitFromUri(uri);
+                fail("Error: The limit " + limit + " was accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
 }
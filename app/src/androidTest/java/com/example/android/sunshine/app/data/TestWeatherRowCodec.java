@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks how WeatherRowCodec rewrites selections: only real references to the weather table's
+    encoded columns may change.  TestProvider checks that the rewritten selections then select
+    the right rows.
+ */
+public class TestWeatherRowCodec extends AndroidTestCase {
+
+    private static final String MAX = "(weather.max / 100.0)";
+    private static final String MIN = "(weather.min / 100.0)";
+    private static final String WIND = "(weather.wind / 100.0)";
+    private static final String SHORT_DESC = "(SELECT short_desc FROM weather_condition WHERE " +
+            "weather_condition.weather_id = weather.weather_id)";
+
+    public void testBareAndQualifiedColumns() {
+        assertNull(WeatherRowCodec.decodeSelection(null));
+        assertEquals(MAX + " > ?", WeatherRowCodec.decodeSelection("max > ?"));
+        assertEquals(MAX + " > ?", WeatherRowCodec.decodeSelection("weather.max > ?"));
+        assertEquals(MAX + " > ?", WeatherRowCodec.decodeSelection("WEATHER.MAX > ?"));
+        assertEquals(MAX + " > ?", WeatherRowCodec.decodeSelection("\"max\" > ?"));
+        assertEquals(MAX + " > ?", WeatherRowCodec.decodeSelection("\"weather\".\"max\" > ?"));
+        assertEquals(MAX + " > ?", WeatherRowCodec.decodeSelection("\"weather\".max > ?"));
+        assertEquals(WIND + " > ?", WeatherRowCodec.decodeSelection("weather.\"wind\" > ?"));
+    }
+
+    /*
+        Names that only look like an encoded column are left alone: columns of other tables,
+        longer names and the MIN and MAX functions.
+     */
+    public void testOtherNamesAreKept() {
+        String[] kept = {
+                "location.max = 1",
+                "\"location\".\"max\" = 1",
+                "weather_condition.short_desc = ?",
+                "maximum > 2 AND date = ? AND weather_id = 800"
+        };
+        for (String selection : kept) {
+            assertEquals("Error: A selection with nothing to decode was rewritten",
+                    selection, WeatherRowCodec.decodeSelection(selection));
+        }
+        assertEquals("Error: MAX( was taken for the column",
+                "MAX(" + MAX + ") > 3", WeatherRowCodec.decodeSelection("MAX(max) > 3"));
+        assertEquals("MIN (" + MIN + ") > 3", WeatherRowCodec.decodeSelection("MIN (min) > 3"));
+    }
+
+    /*
+        A string literal is data, whatever it spells, and an escaped quote ('') doesn't end it.
+     */
+    public void testQuotedLiterals() {
+        assertEquals("Error: A column name inside a literal was rewritten",
+                SHORT_DESC + " = 'max > min'",
+                WeatherRowCodec.decodeSelection("short_desc = 'max > min'"));
+        assertEquals("Error: An escaped quote ended the literal early",
+                SHORT_DESC + " = 'max''s min' AND " + MAX + " > 1",
+                WeatherRowCodec.decodeSelection("short_desc = 'max''s min' AND max > 1"));
+        assertEquals("'it''s' = " + SHORT_DESC,
+                WeatherRowCodec.decodeSelection("'it''s' = short_desc"));
+        assertEquals("'''' = " + SHORT_DESC,
+                WeatherRowCodec.decodeSelection("'''' = short_desc"));
+        assertEquals("Error: An unterminated literal was read into",
+                "'max", WeatherRowCodec.decodeSelection("'max"));
+    }
+
+    public void testNestedExpressions() {
+        assertEquals("((" + MAX + " > 20 OR (" + MIN + " < 0 AND " + WIND + " = ?)) AND " +
+                        "location.coord_lat > 1)",
+                WeatherRowCodec.decodeSelection("((max > 20 OR (min < 0 AND weather.wind = ?)) " +
+                        "AND location.coord_lat > 1)"));
+        assertEquals(MAX + "-" + MIN + ">10",
+                WeatherRowCodec.decodeSelection("max-min>10"));
+        assertEquals("NOT (" + SHORT_DESC + " IN ('Clear', 'Rain') OR " + MAX + " BETWEEN ? AND ?)",
+                WeatherRowCodec.decodeSelection(
+                        "NOT (short_desc IN ('Clear', 'Rain') OR max BETWEEN ? AND ?)"));
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.nio.ByteBuffer;
+
+/*
+    Packs forecasts with WearForecastPayload and reads them back the way the watch does.  The
+    watch's ForecastPayload lives in the wear module, out of reach of these tests, so Reader
+    below is a copy of it; change the two together.
+ */
+public class TestWearForecastPayload extends AndroidTestCase {
+
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+    }
+
+    private long day(int days) {
+        return mToday + days * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private static int julianDayOf(long millis) {
+        Time time = new Time();
+        time.set(millis);
+        return Time.getJulianDay(millis, time.gmtoff);
+    }
+
+    public void testDaysAndGaps() {
+        WearForecastPayload payload = new WearForecastPayload();
+        assertTrue(payload.addDay(day(0), 800, 21.5f, 12.0f));
+        assertTrue(payload.addDay(day(1), 500, 18.0f, 9.5f));
+        // A missing day is a gap of two, not a record of its own
+        assertTrue(payload.addDay(day(3), 211, -3.5f, -11.0f));
+        byte[] bytes = payload.toByteArray();
+        assertEquals("Error: The payload is not its header and three records",
+                WearForecastPayload.HEADER_SIZE + 3 * WearForecastPayload.RECORD_SIZE,
+                bytes.length);
+
+        Reader reader = Reader.decode(bytes);
+        assertNotNull("Error: The watch could not read the payload", reader);
+        assertEquals(3, reader.getCount());
+        int firstDay = julianDayOf(day(0));
+        assertEquals(firstDay, reader.getJulianDay(0));
+        assertEquals(firstDay + 1, reader.getJulianDay(1));
+        assertEquals(firstDay + 3, reader.getJulianDay(2));
+        assertEquals(0, reader.getGap(0));
+        assertEquals(1, reader.getGap(1));
+        assertEquals(2, reader.getGap(2));
+        assertEquals(211, reader.getWeatherId(2));
+        assertEquals(-3.5f, reader.getHigh(2), 0.0001f);
+        assertEquals(-11.0f, reader.getLow(2), 0.0001f);
+    }
+
+    public void testTemperaturesAreQuantizedAndClamped() {
+        WearForecastPayload payload = new WearForecastPayload();
+        payload.addDay(day(0), 800, 21.26f, -0.04f);
+        payload.addDay(day(1), 800, 21.24f, -7.35f);
+        payload.addDay(day(2), 800, 1e6f, -1e6f);
+        Reader reader = Reader.decode(payload.toByteArray());
+
+        assertEquals(213, reader.getHighTenths(0));
+        assertEquals(0, reader.getLowTenths(0));
+        assertEquals(212, reader.getHighTenths(1));
+        assertEquals(-73, reader.getLowTenths(1));
+        assertEquals("Error: A high out of range was not clamped",
+                Short.MAX_VALUE, reader.getHighTenths(2));
+        assertEquals("Error: A low out of range was not clamped",
+                Short.MIN_VALUE, reader.getLowTenths(2));
+    }
+
+    public void testDaysOutOfOrder() {
+        WearForecastPayload payload = new WearForecastPayload();
+        payload.addDay(day(1), 800, 20, 10);
+        try {
+            payload.addDay(day(1), 800, 20, 10);
+            fail("Error: The same day was added twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            payload.addDay(day(0), 800, 20, 10);
+            fail("Error: A day before the last one was added");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            payload.addDay(day(1 + Byte.MAX_VALUE + 1), 800, 20, 10);
+            fail("Error: A gap too long for its byte was added");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, payload.getCount());
+    }
+
+    public void testFullPayload() {
+        WearForecastPayload payload = new WearForecastPayload();
+        for (int i = 0; i < WearForecastPayload.MAX_DAYS; i++) {
+            assertTrue(payload.addDay(day(i), 800, 20, 10));
+        }
+        assertFalse("Error: A day past the last one fit",
+                payload.addDay(day(WearForecastPayload.MAX_DAYS), 800, 20, 10));
+        assertEquals(WearForecastPayload.MAX_DAYS, Reader.decode(payload.toByteArray()).getCount());
+    }
+
+    /*
+        A later phone may add fields at the end of each record.  The watch has to step over them
+        by the record size in the header.
+     */
+    public void testLongerRecordsAreSkipped() {
+        int recordSize = WearForecastPayload.RECORD_SIZE + 2;
+        ByteBuffer buffer = ByteBuffer.allocate(WearForecastPayload.HEADER_SIZE + 2 * recordSize);
+        int firstDay = julianDayOf(day(0));
+        buffer.put((byte) WearForecastPayload.VERSION);
+        buffer.put((byte) 2);
+        buffer.put((byte) recordSize);
+        buffer.putInt(firstDay);
+        buffer.put((byte) 0).putShort((short) 800).putShort((short) 215).putShort((short) 120);
+        buffer.putShort((short) 0x7777);
+        buffer.put((byte) 1).putShort((short) 500).putShort((short) -15).putShort((short) -80);
+        buffer.putShort((short) 0x7777);
+
+        Reader reader = Reader.decode(buffer.array());
+        assertNotNull("Error: The watch could not read longer records", reader);
+        assertEquals(2, reader.getCount());
+        assertEquals(firstDay + 1, reader.getJulianDay(1));
+        assertEquals(500, reader.getWeatherId(1));
+        assertEquals(-1.5f, reader.getHigh(1), 0.0001f);
+        assertEquals(-8.0f, reader.getLow(1), 0.0001f);
+
+        buffer.put(2, (byte) (WearForecastPayload.RECORD_SIZE - 1));
+        assertNull("Error: Records shorter than the known fields were read",
+                Reader.decode(buffer.array()));
+    }
+
+    /*
+        The watch's ForecastPayload, less what these tests don't need.
+     */
+    private static final class Reader {
+        private static final int MIN_RECORD_SIZE = 7;
+
+        private static final int RECORD_GAP = 0;
+        private static final int RECORD_WEATHER_ID = 1;
+        private static final int RECORD_HIGH = 3;
+        private static final int RECORD_LOW = 5;
+
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+        private final int mRecordSize;
+        private final int[] mJulianDays;
+
+        private Reader(ByteBuffer buffer, int count, int recordSize) {
+            mBuffer = buffer;
+            mCount = count;
+            mRecordSize = recordSize;
+            mJulianDays = new int[count];
+            int julianDay = buffer.getInt(3);
+            for (int day = 0; day < count; day++) {
+                julianDay += buffer.get(record(day) + RECORD_GAP);
+                mJulianDays[day] = julianDay;
+            }
+        }
+
+        static Reader decode(byte[] bytes) {
+            if (bytes == null || bytes.length < WearForecastPayload.HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int count = buffer.get(1) & 0xff;
+            int recordSize = buffer.get(2) & 0xff;
+            if (buffer.get(0) != WearForecastPayload.VERSION || recordSize < MIN_RECORD_SIZE ||
+                    bytes.length < WearForecastPayload.HEADER_SIZE + count * recordSize) {
+                return null;
+            }
+            return new Reader(buffer, count, recordSize);
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        int getJulianDay(int day) {
+            return mJulianDays[day];
+        }
+
+        int getGap(int day) {
+            return mBuffer.get(record(day) + RECORD_GAP);
+        }
+
+        int getWeatherId(int day) {
+            return mBuffer.getShort(record(day) + RECORD_WEATHER_ID);
+        }
+
+        short getHighTenths(int day) {
+            return mBuffer.getShort(record(day) + RECORD_HIGH);
+        }
+
+        short getLowTenths(int day) {
+            return mBuffer.getShort(record(day) + RECORD_LOW);
+        }
+
+        float getHigh(int day) {
+            return getHighTenths(day) / 10f;
+        }
+
+        float getLow(int day) {
+            return getLowTenths(day) / 10f;
+        }
+
+        private int record(int day) {
+            return WearForecastPayload.HEADER_SIZE + day * mRecordSize;
+        }
+    }
+}
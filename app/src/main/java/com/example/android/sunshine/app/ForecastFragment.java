@@ -17,6 +17,7 @@ package com.example.android.sunshine.app;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.TypedArray;
@@ -45,6 +46,7 @@ import android.view.ViewTreeObserver;
 import android.widget.AbsListView;
 import android.widget.TextView;
 
+import com.example.android.sunshine.app.data.ForecastColumns;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
@@ -59,6 +61,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    private boolean mFirstForecastLoaded;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -105,6 +108,11 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
          * DetailFragmentCallback for when an item has been selected.
          */
         public void onItemSelected(Uri dateUri, ForecastAdapter.ForecastAdapterViewHolder vh);
+
+        /**
+         * Called once, the first time the forecast list receives rows.
+         */
+        public void onFirstForecastLoaded();
     }
 
     public ForecastFragment() {
@@ -316,21 +324,52 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
                 locationSetting, System.currentTimeMillis());
 
-        return new CursorLoader(getActivity(),
+        return new ForecastLoader(getActivity(),
+                locationSetting,
                 weatherForLocationUri,
                 FORECAST_COLUMNS,
-                null,
-                null,
                 sortOrder);
     }
 
+    /*
+        Loads the list's cursor, which still carries the location's coordinates and the change
+        notifications, along with the shared ForecastColumns the list binds its rows from, so
+        the list builds no columns of its own when the widgets or the watch already have.
+     */
+    private static class ForecastLoader extends CursorLoader {
+        private final String mLocationSetting;
+        private volatile ForecastColumns mForecast = ForecastColumns.EMPTY;
+
+        ForecastLoader(Context context, String locationSetting, Uri uri, String[] projection,
+                       String sortOrder) {
+            super(context, uri, projection, null, null, sortOrder);
+            mLocationSetting = locationSetting;
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor cursor = super.loadInBackground();
+            // After the cursor, so the columns are at least as new as the rows it holds
+            mForecast = ForecastColumns.get(getContext(), mLocationSetting);
+            return cursor;
+        }
+
+        ForecastColumns getForecast() {
+            return mForecast;
+        }
+    }
+
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
+        mForecastAdapter.swapCursor(data, ((ForecastLoader) loader).getForecast());
         updateEmptyView();
         if ( data.getCount() == 0 ) {
             getActivity().supportStartPostponedEnterTransition();
         } else {
+            if ( !mFirstForecastLoaded ) {
+                mFirstForecastLoaded = true;
+                ((Callback) getActivity()).onFirstForecastLoaded();
+            }
             mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
                 @Override
                 public boolean onPreDraw() {
@@ -341,16 +380,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                         int position = mForecastAdapter.getSelectedItemPosition();
                         if (position == RecyclerView.NO_POSITION &&
                                 -1 != mInitialSelectedDate) {
-                            Cursor data = mForecastAdapter.getCursor();
-                            int count = data.getCount();
-                            int dateColumn = data.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
-                            for ( int i = 0; i < count; i++ ) {
-                                data.moveToPosition(i);
-                                if ( data.getLong(dateColumn) == mInitialSelectedDate ) {
-                                    position = i;
-                                    break;
-                                }
-                            }
+                            position = mForecastAdapter.getForecast()
+                                    .indexOfDate(mInitialSelectedDate);
                         }
                         if (position == RecyclerView.NO_POSITION) position = 0;
                         // If we don't need to restart the loader, and there's a desired position to restore
@@ -384,7 +415,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mForecastAdapter.swapCursor(null);
+        mForecastAdapter.swapCursor(null, ForecastColumns.EMPTY);
     }
 
     public void setUseTodayLayout(boolean useTodayLayout) {
@@ -19,17 +19,29 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import com.example.android.sunshine.app.data.CityIndex;
+
+import java.util.List;
 
 public class LocationEditTextPreference extends EditTextPreference {
     static final private int DEFAULT_MINIMUM_LOCATION_LENGTH = 2;
+    static final private int MAX_SUGGESTIONS = 5;
     private int mMinLength;
+    private LinearLayout mSuggestions;
 
     public LocationEditTextPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -45,11 +57,38 @@ public class LocationEditTextPreference extends EditTextPreference {
     }
 
 
+    // Lists the suggestions for the typed name under the text field
+    @Override
+    protected void onAddEditTextToDialogView(View dialogView, EditText editText) {
+        super.onAddEditTextToDialogView(dialogView, editText);
+        ViewGroup container = (ViewGroup) editText.getParent();
+        if (container != null) {
+            mSuggestions = new LinearLayout(getContext());
+            mSuggestions.setOrientation(LinearLayout.VERTICAL);
+            container.addView(mSuggestions, new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        }
+    }
+
     @Override
     protected void showDialog(Bundle state) {
         super.showDialog(state);
 
-        EditText et = getEditText();
+        final EditText et = getEditText();
+        if (CityIndex.peek() == null) {
+            // The first use inflates the index, so open it off the main thread
+            new AsyncTask<Void, Void, CityIndex>() {
+                @Override
+                protected CityIndex doInBackground(Void... params) {
+                    return CityIndex.getInstance(getContext());
+                }
+
+                @Override
+                protected void onPostExecute(CityIndex cityIndex) {
+                    checkLocation(et.getText().toString());
+                }
+            }.execute();
+        }
         et.addTextChangedListener(new TextWatcher() {
 
 
@@ -65,20 +104,73 @@ public class LocationEditTextPreference extends EditTextPreference {
 
             @Override
             public void afterTextChanged(Editable s) {
-                Dialog d = getDialog();
-                if (d instanceof AlertDialog) {
-                    AlertDialog dialog = (AlertDialog) d;
-                    Button positiveButton = dialog.getButton(AlertDialog.BUTTON_POSITIVE);
-                    // Check if the EditText is empty
-                    if (s.length() < mMinLength) {
-                        // Disable OK button
-                        positiveButton.setEnabled(false);
-                    } else {
-                        // Re-enable the button.
-                        positiveButton.setEnabled(true);
-                    }
-                }
+                checkLocation(s.toString());
             }
         });
+        checkLocation(et.getText().toString());
+    }
+
+    /*
+        Enables OK only for a location long enough and, when the city index lists every city,
+        one the index knows, and offers the cities starting with what was typed.
+     */
+    private void checkLocation(String location) {
+        Dialog d = getDialog();
+        if (!(d instanceof AlertDialog)) {
+            return;
+        }
+        AlertDialog dialog = (AlertDialog) d;
+        Button positiveButton = dialog.getButton(AlertDialog.BUTTON_POSITIVE);
+        if (positiveButton == null) {
+            return;
+        }
+        // Check if the EditText is empty
+        if (location.length() < mMinLength) {
+            // Disable OK button
+            positiveButton.setEnabled(false);
+            showSuggestions(null);
+            return;
+        }
+
+        CityIndex cityIndex = CityIndex.peek();
+        if (cityIndex == null || CityIndex.isPostalCode(location)) {
+            // Nothing to check against; the server decides
+            positiveButton.setEnabled(true);
+            getEditText().setError(null);
+            showSuggestions(null);
+            return;
+        }
+
+        boolean known = cityIndex.resolve(location) != null;
+        boolean valid = known || !cityIndex.isComplete();
+        positiveButton.setEnabled(valid);
+        getEditText().setError(valid ? null :
+                getContext().getString(R.string.pref_location_not_found, location));
+        showSuggestions(known ? null : cityIndex.suggest(location, MAX_SUGGESTIONS));
+    }
+
+    private void showSuggestions(List<CityIndex.City> cities) {
+        if (mSuggestions == null) {
+            return;
+        }
+        mSuggestions.removeAllViews();
+        if (cities == null) {
+            return;
+        }
+        LayoutInflater inflater = LayoutInflater.from(getContext());
+        for (final CityIndex.City city : cities) {
+            TextView row = (TextView) inflater.inflate(android.R.layout.simple_list_item_1,
+                    mSuggestions, false);
+            row.setText(city.toString());
+            row.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    EditText et = getEditText();
+                    et.setText(city.getLocationSetting());
+                    et.setSelection(et.length());
+                }
+            });
+            mSuggestions.addView(row);
+        }
     }
 }
@@ -19,6 +19,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.ActivityOptionsCompat;
@@ -46,9 +47,12 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
 
     private boolean mTwoPane;
     private String mLocation;
+    private long mCreateTime;
+    private long mTimeToFirstForecast = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreateTime = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
         mLocation = Utility.getPreferredLocation(this);
         Uri contentUri = getIntent() != null ? getIntent().getData() : null;
@@ -179,6 +183,20 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
         }
     }
 
+    @Override
+    public void onFirstForecastLoaded() {
+        mTimeToFirstForecast = SystemClock.elapsedRealtime() - mCreateTime;
+        Log.i(LOG_TAG, "First forecast row after " + mTimeToFirstForecast + "ms");
+    }
+
+    /**
+     * Returns the time from onCreate to the first forecast row reaching the list, in
+     * milliseconds, or -1 if no row has been shown yet.
+     */
+    public long getTimeToFirstForecast() {
+        return mTimeToFirstForecast;
+    }
+
     /**
      * Check the device to make sure it has the Google Play Services APK. If
      * it doesn't, display a dialog that allows users to download the APK from
@@ -19,12 +19,18 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.format.Time;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
@@ -43,6 +49,55 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Helper method to read the first forecast on or after today for a location.  It comes from
+     * the forecast snapshot the sync writes when that is for the same location.  Otherwise, on
+     * Honeycomb and up this is a single {@link android.content.ContentResolver#call} into the
+     * provider's in-memory copy; before that it falls back to a one row query.
+     *
+     * @param context         Context used to reach the content provider
+     * @param locationSetting The location setting to read the forecast for
+     * @return A Bundle keyed by the WeatherEntry date, weather_id, short_desc, max and min
+     * column names, or null if there is no forecast for today yet.
+     */
+    public static Bundle getTodayForecast(Context context, String locationSetting) {
+        Bundle snapshotToday = ForecastSnapshot.getToday(context, locationSetting);
+        if (snapshotToday != null) {
+            return snapshotToday;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return context.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_GET_TODAY, locationSetting, null);
+        }
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis(), 1);
+        Cursor cursor = context.getContentResolver().query(weatherUri, TODAY_COLUMNS, null, null,
+                null);
+        if (cursor == null) {
+            return null;
+        }
+        Bundle today = null;
+        if (cursor.moveToFirst()) {
+            today = new Bundle();
+            today.putLong(WeatherContract.WeatherEntry.COLUMN_DATE, cursor.getLong(0));
+            today.putInt(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(1));
+            today.putString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(2));
+            today.putDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, cursor.getDouble(3));
+            today.putDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, cursor.getDouble(4));
+        }
+        cursor.close();
+        return today;
+    }
+
+    // The columns read by getTodayForecast before Honeycomb, in Bundle order
+    private static final String[] TODAY_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
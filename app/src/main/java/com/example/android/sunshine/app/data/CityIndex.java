@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A read-only index of the cities the weather server knows, used to check and complete a
+ * location before it is sent anywhere.
+ * <p>
+ * The index ships gzipped as the {@code cities.idx.gz} asset.  The first time it is needed it is
+ * inflated into the app's files directory and memory-mapped from there, so lookups page in only
+ * the records they touch and the list itself never lives on the heap.
+ * <p>
+ * File layout, big-endian:
+ * <pre>
+ * int   magic ("CITY")
+ * int   version
+ * int   flags (FLAG_COMPLETE when every city the server knows is listed)
+ * int   count
+ * int[] record offsets, in key order
+ * records: byte key length, key (ASCII), byte name length, name (UTF-8), 2-byte country code,
+ *          float latitude, float longitude, int city id
+ * </pre>
+ * The key is the {@link #normalize normalized} name.  Cities sharing a name are stored most
+ * populous first, so the first match is the one the server would pick for a bare name.
+ */
+public class CityIndex {
+    private static final String LOG_TAG = CityIndex.class.getSimpleName();
+
+    static final String ASSET_NAME = "cities.idx.gz";
+    static final String FILE_NAME = "cities.idx";
+
+    private static final int MAGIC = 0x43495459;
+    private static final int VERSION = 1;
+    private static final int FLAG_COMPLETE = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static CityIndex sInstance;
+
+    /**
+     * One city of the index.
+     */
+    public static final class City {
+        private final String mName;
+        private final String mCountry;
+        private final float mLatitude;
+        private final float mLongitude;
+        private final int mId;
+
+        City(String name, String country, float latitude, float longitude, int id) {
+            mName = name;
+            mCountry = country;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mId = id;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getCountry() {
+            return mCountry;
+        }
+
+        public float getLatitude() {
+            return mLatitude;
+        }
+
+        public float getLongitude() {
+            return mLongitude;
+        }
+
+        /**
+         * The weather server's id for the city, what the sync sends instead of the name.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * The value to store as the location setting, e.g. "London,GB".
+         */
+        public String getLocationSetting() {
+            return mName + "," + mCountry;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ", " + mCountry;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final boolean mComplete;
+
+    CityIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a city index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported city index version " + buffer.getInt(4));
+        }
+        mBuffer = buffer;
+        mComplete = (buffer.getInt(8) & FLAG_COMPLETE) != 0;
+        mCount = buffer.getInt(12);
+    }
+
+    /**
+     * Returns the index, opening it first if needed.  Opening may inflate the asset, so call this
+     * off the main thread; {@link #peek()} returns the index only once it is open.
+     *
+     * @return The index, or null if it could not be opened
+     */
+    public static synchronized CityIndex getInstance(Context context) {
+        if (sInstance == null) {
+            try {
+                sInstance = new CityIndex(map(extract(context.getApplicationContext())));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error opening the city index", e);
+            }
+        }
+        return sInstance;
+    }
+
+    public static synchronized CityIndex peek() {
+        return sInstance;
+    }
+
+    /*
+        Inflates the asset into the files directory, unless the copy there is newer than the
+        installed app.
+     */
+    private static File extract(Context context) throws IOException {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        long installed;
+        try {
+            installed = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            installed = Long.MAX_VALUE;
+        }
+        if (file.exists() && file.lastModified() >= installed) {
+            return file;
+        }
+
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new GZIPInputStream(context.getAssets().open(ASSET_NAME));
+            out = new FileOutputStream(tmp);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not move the city index into place");
+        }
+        return file;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            // The mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Folds a name the way the index keys are built: accents dropped, lower case, every run of
+     * other characters collapsed to one space.
+     */
+    public static String normalize(String name) {
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFD)
+                .replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
+        return folded.toLowerCase(Locale.US).replaceAll("[^a-z0-9]+", " ").trim();
+    }
+
+    /**
+     * Postal codes are left to the server; the index only lists city names.
+     */
+    public static boolean isPostalCode(String location) {
+        for (int i = 0; i < location.length(); i++) {
+            if (Character.isDigit(location.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the index lists every city the server knows.  Only then does a name missing from it
+     * mean the server will reject it.
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Resolves a location setting, either a bare name ("London") or a name and country
+     * ("London,GB"), to the city the server would pick.
+     *
+     * @return The city, or null if the index doesn't list it
+     */
+    public City resolve(String location) {
+        String name = location;
+        String country = null;
+        int comma = location.lastIndexOf(',');
+        if (comma >= 0) {
+            String suffix = location.substring(comma + 1).trim();
+            if (suffix.length() == 2) {
+                name = location.substring(0, comma);
+                country = suffix.toUpperCase(Locale.US);
+            }
+        }
+
+        String key = normalize(name);
+        if (key.length() == 0) {
+            return null;
+        }
+        for (int i = lowerBound(key); i < mCount && key.equals(keyAt(i)); i++) {
+            City city = cityAt(i);
+            if (country == null || country.equals(city.getCountry())) {
+                return city;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns up to {@code limit} cities whose name starts with the given text, in name order.
+     */
+    public List<City> suggest(String prefix, int limit) {
+        List<City> cities = new ArrayList<City>();
+        String key = normalize(prefix);
+        if (key.length() == 0) {
+            return cities;
+        }
+        for (int i = lowerBound(key); i < mCount && cities.size() < limit; i++) {
+            if (!keyAt(i).startsWith(key)) {
+                break;
+            }
+            cities.add(cityAt(i));
+        }
+        return cities;
+    }
+
+    // The first record whose key is not less than the given key
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keyAt(mid).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int recordOffset(int i) {
+        return mBuffer.getInt(HEADER_SIZE + 4 * i);
+    }
+
+    private String keyAt(int i) {
+        int offset = recordOffset(i);
+        return readString(offset + 1, mBuffer.get(offset) & 0xff, ASCII);
+    }
+
+    private City cityAt(int i) {
+        int offset = recordOffset(i);
+        offset += 1 + (mBuffer.get(offset) & 0xff);
+        int nameLength = mBuffer.get(offset) & 0xff;
+        String name = readString(offset + 1, nameLength, UTF_8);
+        offset += 1 + nameLength;
+        String country = readString(offset, 2, ASCII);
+        offset += 2;
+        return new City(name, country, mBuffer.getFloat(offset), mBuffer.getFloat(offset + 4),
+                mBuffer.getInt(offset + 8));
+    }
+
+    // Absolute reads only, so lookups from several threads don't disturb each other
+    private String readString(int offset, int length, Charset charset) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+        return new String(bytes, charset);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * A read-only forecast held as one primitive array per column, day i of every column at index i.
+ * <p>
+ * It is read out of a cursor once, after which binding or sending a day is plain array reads:
+ * no cursor seeks and no boxing.  {@link #get} keeps one for the preferred location per process,
+ * tagged with the provider's data version it was read at.  As soon as a write through the
+ * provider has committed the version moves on, so the next caller rebuilds it rather than
+ * waiting for an observer to hear of the change.  The list, the widgets and the wearable updater
+ * all share it.
+ */
+public final class ForecastColumns {
+
+    // The columns a consumer of the forecast reads
+    public static final String[] COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    public static final ForecastColumns EMPTY = new ForecastColumns(0);
+
+    private static final Object sLock = new Object();
+    private static String sLocationSetting;
+    private static long sDataVersion;
+    private static ForecastColumns sForecast;
+
+    private final int mCount;
+    private final long[] mIds;
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    private final String[] mDescriptions;
+    private final float[] mHighs;
+    private final float[] mLows;
+
+    private ForecastColumns(int count) {
+        mCount = count;
+        mIds = new long[count];
+        mDates = new long[count];
+        mWeatherIds = new int[count];
+        mDescriptions = new String[count];
+        mHighs = new float[count];
+        mLows = new float[count];
+    }
+
+    /**
+     * Reads every row of a cursor holding at least the {@link #COLUMNS}, in any order, sorted by
+     * date.  Leaves the cursor after its last row.
+     */
+    public static ForecastColumns fromCursor(Cursor cursor) {
+        ForecastColumns forecast = new ForecastColumns(cursor.getCount());
+        int idIndex = cursor.getColumnIndexOrThrow(WeatherEntry._ID);
+        int dateIndex = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_DATE);
+        int weatherIdIndex = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_WEATHER_ID);
+        int descriptionIndex = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_SHORT_DESC);
+        int highIndex = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_MAX_TEMP);
+        int lowIndex = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_MIN_TEMP);
+
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < forecast.mCount && cursor.moveToNext(); i++) {
+            forecast.mIds[i] = cursor.getLong(idIndex);
+            forecast.mDates[i] = cursor.getLong(dateIndex);
+            forecast.mWeatherIds[i] = cursor.getInt(weatherIdIndex);
+            forecast.mDescriptions[i] = cursor.getString(descriptionIndex);
+            forecast.mHighs[i] = cursor.getFloat(highIndex);
+            forecast.mLows[i] = cursor.getFloat(lowIndex);
+        }
+        return forecast;
+    }
+
+    /**
+     * Returns the forecast from today on for the location, building it if the weather data has
+     * changed since it was last asked for.  Queries the provider, so call it off the main thread.
+     */
+    public static ForecastColumns get(Context context, String locationSetting) {
+        synchronized (sLock) {
+            // Taken before the query, so a write the query may have missed shows up as a new one
+            long dataVersion = WeatherProvider.getDataVersion();
+            long startOfToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+            // Also rebuild once the first day held has become yesterday
+            if (sForecast != null && dataVersion == sDataVersion &&
+                    locationSetting.equals(sLocationSetting) &&
+                    (sForecast.mCount == 0 || sForecast.mDates[0] >= startOfToday)) {
+                return sForecast;
+            }
+
+            Cursor cursor = context.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocationWithStartDate(locationSetting, startOfToday),
+                    COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            if (cursor == null) {
+                return EMPTY;
+            }
+            try {
+                sForecast = fromCursor(cursor);
+                sLocationSetting = locationSetting;
+                sDataVersion = dataVersion;
+            } finally {
+                cursor.close();
+            }
+            return sForecast;
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getId(int day) {
+        return mIds[day];
+    }
+
+    public long getDate(int day) {
+        return mDates[day];
+    }
+
+    public int getWeatherId(int day) {
+        return mWeatherIds[day];
+    }
+
+    public String getDescription(int day) {
+        return mDescriptions[day];
+    }
+
+    public float getHigh(int day) {
+        return mHighs[day];
+    }
+
+    public float getLow(int day) {
+        return mLows[day];
+    }
+
+    /**
+     * @return The day with exactly this date, or -1
+     */
+    public int indexOfDate(long date) {
+        int day = Arrays.binarySearch(mDates, 0, mCount, date);
+        return day >= 0 ? day : -1;
+    }
+
+    /**
+     * @return The first day on or after the date, or -1 if every day is before it
+     */
+    public int indexOfFirstDayFrom(long date) {
+        int day = Arrays.binarySearch(mDates, 0, mCount, date);
+        if (day < 0) {
+            day = -day - 1;
+        }
+        return day < mCount ? day : -1;
+    }
+}
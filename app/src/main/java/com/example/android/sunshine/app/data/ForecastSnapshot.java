@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The next few days of the preferred location's forecast in a small fixed-layout file, so the
+ * widgets, Muzei, the notification and the wearable updater can read them without a query.
+ * <p>
+ * The sync writes it after every refresh to a temporary file that is then renamed over the old
+ * one, so a reader always maps one whole snapshot.  Readers map it with {@link #open} and keep
+ * the mapping until the file is replaced.
+ * <p>
+ * A snapshot is only put in place if the provider's data version is still the one it was read
+ * at, and the first write through the provider after that removes it, so readers go to the
+ * provider until the next sync rather than reading days that have since changed.  Later writes
+ * find nothing to remove and leave the file system alone.
+ * <p>
+ * File layout, big-endian:
+ * <pre>
+ * 0   int    magic ("SNAP")
+ * 4   int    version
+ * 8   long   written at, in milliseconds since the epoch
+ * 16  int    day count, at most MAX_DAYS
+ * 20  int    record size
+ * 24  short  location setting length, then up to 62 bytes of UTF-8
+ * 88  records, one per day from today on:
+ *     long date, int weather id, float high, float low,
+ *     byte description length, then up to 27 bytes of UTF-8
+ * </pre>
+ */
+public final class ForecastSnapshot {
+    private static final String LOG_TAG = ForecastSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "forecast.snapshot";
+
+    // Today and the six days after it
+    public static final int MAX_DAYS = 7;
+
+    private static final int MAGIC = 0x534e4150;
+    private static final int VERSION = 1;
+
+    private static final int OFFSET_WRITTEN_AT = 8;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_RECORD_SIZE = 20;
+    private static final int OFFSET_LOCATION = 24;
+    private static final int LOCATION_SIZE = 64;
+    private static final int HEADER_SIZE = OFFSET_LOCATION + LOCATION_SIZE;
+
+    private static final int RECORD_DATE = 0;
+    private static final int RECORD_WEATHER_ID = 8;
+    private static final int RECORD_HIGH = 12;
+    private static final int RECORD_LOW = 16;
+    private static final int RECORD_DESCRIPTION = 20;
+    private static final int DESCRIPTION_SIZE = 28;
+    private static final int RECORD_SIZE = RECORD_DESCRIPTION + DESCRIPTION_SIZE;
+
+    private static final int FILE_SIZE = HEADER_SIZE + MAX_DAYS * RECORD_SIZE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static ForecastSnapshot sSnapshot;
+    // Whether a snapshot may be in place that no write has removed yet.  A new process can't
+    // tell what an earlier one left, so it assumes one is.
+    private static boolean sMayExist = true;
+
+    private final ByteBuffer mBuffer;
+    private final long mLastModified;
+    private final int mCount;
+    private final String mLocationSetting;
+
+    private ForecastSnapshot(ByteBuffer buffer, long lastModified) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a forecast snapshot");
+        }
+        if (buffer.getInt(4) != VERSION || buffer.getInt(OFFSET_RECORD_SIZE) != RECORD_SIZE) {
+            throw new IOException("Unsupported forecast snapshot version " + buffer.getInt(4));
+        }
+        mCount = buffer.getInt(OFFSET_COUNT);
+        if (mCount < 0 || mCount > MAX_DAYS || buffer.capacity() < FILE_SIZE) {
+            throw new IOException("Truncated forecast snapshot");
+        }
+        int locationLength = buffer.getShort(OFFSET_LOCATION);
+        if (locationLength < 0 || locationLength > LOCATION_SIZE - 2) {
+            throw new IOException("Corrupt forecast snapshot");
+        }
+        mBuffer = buffer;
+        mLastModified = lastModified;
+        mLocationSetting = readString(buffer, OFFSET_LOCATION, 2, locationLength);
+    }
+
+    /**
+     * Reads the first {@link #MAX_DAYS} days of the location's forecast from today on and writes
+     * them as the new snapshot.  Queries the provider, so call it off the main thread.
+     */
+    public static void write(Context context, String locationSetting) throws IOException {
+        // Taken before the read, so a write the read may have missed shows up as a new version
+        long dataVersion = WeatherProvider.getDataVersion();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(locationSetting,
+                        WeatherContract.normalizeDate(System.currentTimeMillis()), MAX_DAYS),
+                ForecastColumns.COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return;
+        }
+        try {
+            write(context, locationSetting, ForecastColumns.fromCursor(cursor), dataVersion);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes the first {@link #MAX_DAYS} days of a forecast as the new snapshot, replacing the
+     * old one in a single rename, unless the provider's data has changed since the version it
+     * was read at.
+     *
+     * @param dataVersion {@link WeatherProvider#getDataVersion} from before the forecast was read
+     */
+    static void write(Context context, String locationSetting, ForecastColumns forecast,
+                      long dataVersion) throws IOException {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        byte[] location = locationSetting.getBytes(UTF_8);
+        if (location.length > LOCATION_SIZE - 2) {
+            // Too long to record; make sure nobody reads another location's days as this one's
+            synchronized (ForecastSnapshot.class) {
+                remove(context);
+            }
+            return;
+        }
+
+        int count = Math.min(forecast.getCount(), MAX_DAYS);
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(OFFSET_WRITTEN_AT, System.currentTimeMillis());
+        buffer.putInt(OFFSET_COUNT, count);
+        buffer.putInt(OFFSET_RECORD_SIZE, RECORD_SIZE);
+        buffer.putShort(OFFSET_LOCATION, (short) location.length);
+        System.arraycopy(location, 0, buffer.array(), OFFSET_LOCATION + 2, location.length);
+        for (int day = 0; day < count; day++) {
+            int record = HEADER_SIZE + day * RECORD_SIZE;
+            buffer.putLong(record + RECORD_DATE, forecast.getDate(day));
+            buffer.putInt(record + RECORD_WEATHER_ID, forecast.getWeatherId(day));
+            buffer.putFloat(record + RECORD_HIGH, forecast.getHigh(day));
+            buffer.putFloat(record + RECORD_LOW, forecast.getLow(day));
+            byte[] description = truncate(forecast.getDescription(day), DESCRIPTION_SIZE - 1);
+            buffer.put(record + RECORD_DESCRIPTION, (byte) description.length);
+            System.arraycopy(description, 0, buffer.array(), record + RECORD_DESCRIPTION + 1,
+                    description.length);
+        }
+
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buffer.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // Under the lock onDataChanged takes, so a write either comes after this and removes
+        // the snapshot, or came before and is caught here
+        synchronized (ForecastSnapshot.class) {
+            if (WeatherProvider.getDataVersion() != dataVersion) {
+                Log.d(LOG_TAG, "The weather changed while the snapshot was written, dropping it");
+                tmp.delete();
+                return;
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not move the forecast snapshot into place");
+            }
+            sMayExist = true;
+            // File times can be too coarse to tell two quick writes apart, so readers in this
+            // process are told directly
+            sSnapshot = null;
+        }
+    }
+
+    /**
+     * Removes the snapshot if one may be in place.  Called by the provider after every write
+     * that changed rows, once its data version has moved on.
+     */
+    static synchronized void onDataChanged(Context context) {
+        if (sMayExist) {
+            remove(context);
+        }
+    }
+
+    // Callers hold the class lock
+    private static void remove(Context context) {
+        new File(context.getFilesDir(), FILE_NAME).delete();
+        sMayExist = false;
+        sSnapshot = null;
+    }
+
+    // Cuts a string to at most the given number of UTF-8 bytes, on a character boundary
+    private static byte[] truncate(String value, int maxBytes) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        int length = Math.min(bytes.length, maxBytes);
+        // Back off continuation bytes so a character isn't split
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xc0) == 0x80) {
+            length--;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Maps the current snapshot, reusing the mapping until the file is replaced.
+     *
+     * @return The snapshot, or null if there is none or it can't be read
+     */
+    public static synchronized ForecastSnapshot open(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            sSnapshot = null;
+            return null;
+        }
+        if (sSnapshot != null && sSnapshot.mLastModified == lastModified) {
+            return sSnapshot;
+        }
+        sSnapshot = null;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                sSnapshot = new ForecastSnapshot(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                        lastModified);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading the forecast snapshot", e);
+        }
+        return sSnapshot;
+    }
+
+    /**
+     * Today's forecast for the location, as {@link WeatherContract#METHOD_GET_TODAY} returns it,
+     * or null if the snapshot doesn't have it.
+     */
+    public static Bundle getToday(Context context, String locationSetting) {
+        ForecastSnapshot snapshot = open(context);
+        if (snapshot == null || !locationSetting.equals(snapshot.getLocationSetting())) {
+            return null;
+        }
+        int day = snapshot.indexOfFirstDayFrom(
+                WeatherContract.normalizeDate(System.currentTimeMillis()));
+        if (day < 0) {
+            return null;
+        }
+        Bundle today = new Bundle();
+        today.putLong(WeatherEntry.COLUMN_DATE, snapshot.getDate(day));
+        today.putInt(WeatherEntry.COLUMN_WEATHER_ID, snapshot.getWeatherId(day));
+        today.putString(WeatherEntry.COLUMN_SHORT_DESC, snapshot.getDescription(day));
+        today.putDouble(WeatherEntry.COLUMN_MAX_TEMP, snapshot.getHigh(day));
+        today.putDouble(WeatherEntry.COLUMN_MIN_TEMP, snapshot.getLow(day));
+        return today;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public long getWrittenAt() {
+        return mBuffer.getLong(OFFSET_WRITTEN_AT);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getDate(int day) {
+        return mBuffer.getLong(record(day) + RECORD_DATE);
+    }
+
+    public int getWeatherId(int day) {
+        return mBuffer.getInt(record(day) + RECORD_WEATHER_ID);
+    }
+
+    public float getHigh(int day) {
+        return mBuffer.getFloat(record(day) + RECORD_HIGH);
+    }
+
+    public float getLow(int day) {
+        return mBuffer.getFloat(record(day) + RECORD_LOW);
+    }
+
+    public String getDescription(int day) {
+        int offset = record(day) + RECORD_DESCRIPTION;
+        int length = Math.min(mBuffer.get(offset) & 0xff, DESCRIPTION_SIZE - 1);
+        return readString(mBuffer, offset, 1, length);
+    }
+
+    /**
+     * @return The first day on or after the date, or -1 if every day is before it
+     */
+    public int indexOfFirstDayFrom(long date) {
+        for (int day = 0; day < mCount; day++) {
+            if (getDate(day) >= date) {
+                return day;
+            }
+        }
+        return -1;
+    }
+
+    private static int record(int day) {
+        return HEADER_SIZE + day * RECORD_SIZE;
+    }
+
+    // Absolute reads only, so the shared mapping can be read from several threads
+    private static String readString(ByteBuffer buffer, int offset, int lengthSize, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + lengthSize + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Build;
+
+/**
+ * A read-only cursor over rows that were copied out of the database once.  The column names
+ * and row arrays are shared between every cursor handed out for the same snapshot, so a cache
+ * hit only costs the allocation of this small wrapper and its position.
+ */
+class SnapshotCursor extends AbstractCursor {
+
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+
+    SnapshotCursor(String[] columnNames, Object[][] rows) {
+        mColumnNames = columnNames;
+        mRows = rows;
+    }
+
+    /**
+     * Copies every row of the given cursor into a new array.  The cursor is left positioned
+     * after the last row; closing it is up to the caller.
+     */
+    static Object[][] copyRows(Cursor cursor) {
+        final int columnCount = cursor.getColumnCount();
+        final Object[][] rows = new Object[cursor.getCount()][];
+        cursor.moveToPosition(-1);
+        int i = 0;
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columnCount];
+            for (int column = 0; column < columnCount; column++) {
+                row[column] = readValue(cursor, column);
+            }
+            rows[i++] = row;
+        }
+        return rows;
+    }
+
+    private static Object readValue(Cursor cursor, int column) {
+        if (cursor.isNull(column)) {
+            return null;
+        }
+        // Cursor.getType is only available from Honeycomb, before that keep the text form and
+        // let the typed getters below parse it back.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return cursor.getString(column);
+        }
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return new Real(cursor.getDouble(column), cursor.getString(column));
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    /**
+     * A REAL value together with the text SQLite renders for it, so that getString returns
+     * exactly what the database cursor would have.
+     */
+    private static final class Real extends Number {
+        private final double mValue;
+        private final String mText;
+
+        Real(double value, String text) {
+            mValue = value;
+            mText = text;
+        }
+
+        @Override
+        public int intValue() {
+            return (int) mValue;
+        }
+
+        @Override
+        public long longValue() {
+            return (long) mValue;
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) mValue;
+        }
+
+        @Override
+        public double doubleValue() {
+            return mValue;
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+    }
+
+    private Object get(int column) {
+        if (column < 0 || column >= mColumnNames.length) {
+            throw new IllegalArgumentException("Invalid column " + column);
+        }
+        checkPosition();
+        return mRows[getPosition()][column];
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).longValue();
+        return (long) Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        return Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = get(column);
+        if (value == null || value instanceof byte[]) return (byte[]) value;
+        return value.toString().getBytes();
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if (value == null) return Cursor.FIELD_TYPE_NULL;
+        if (value instanceof Long) return Cursor.FIELD_TYPE_INTEGER;
+        if (value instanceof Real) return Cursor.FIELD_TYPE_FLOAT;
+        if (value instanceof byte[]) return Cursor.FIELD_TYPE_BLOB;
+        return Cursor.FIELD_TYPE_STRING;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+
+/**
+ * Hot, in-process copy of today's forecast per location, served by
+ * {@link WeatherProvider#call} as a small {@link Bundle} of primitives.
+ * <p>
+ * The provider drops everything held here after each write, which costs the writer nothing; the
+ * next {@link #get} for a location reads it again.
+ */
+class TodayForecastCache {
+
+    /**
+     * Runs the query for the first forecast row of a location on or after a date.
+     */
+    interface Loader {
+        Cursor queryFirstRow(String locationSetting, long startDate, String[] projection);
+    }
+
+    // These are the only values the "today" consumers read
+    private static final String[] TODAY_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+
+    private final Loader mLoader;
+    // An empty bundle records that a location has no forecast
+    private final HashMap<String, Bundle> mToday = new HashMap<String, Bundle>();
+
+    TodayForecastCache(Loader loader) {
+        mLoader = loader;
+    }
+
+    /**
+     * Returns a copy of the first forecast on or after today for the location, or null when
+     * there is none.
+     */
+    synchronized Bundle get(String locationSetting) {
+        long startOfToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        Bundle today = mToday.get(locationSetting);
+        // Also reload once the held row has become yesterday's
+        if (today == null ||
+                (!today.isEmpty() && today.getLong(WeatherEntry.COLUMN_DATE) < startOfToday)) {
+            today = load(locationSetting, startOfToday);
+            mToday.put(locationSetting, today);
+        }
+        return today.isEmpty() ? null : new Bundle(today);
+    }
+
+    /**
+     * Forgets every location held in the cache.  Called by the provider after a write.  A load
+     * running in {@link #get} holds the same lock, so it can't put back a row read before the
+     * write once this has run.
+     */
+    synchronized void invalidate() {
+        mToday.clear();
+    }
+
+    private Bundle load(String locationSetting, long startOfToday) {
+        Bundle today = new Bundle();
+        Cursor cursor = mLoader.queryFirstRow(locationSetting, startOfToday, TODAY_COLUMNS);
+        try {
+            if (cursor.moveToFirst()) {
+                today.putLong(WeatherEntry.COLUMN_DATE, cursor.getLong(INDEX_DATE));
+                today.putInt(WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(INDEX_WEATHER_ID));
+                today.putString(WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(INDEX_SHORT_DESC));
+                today.putDouble(WeatherEntry.COLUMN_MAX_TEMP, cursor.getDouble(INDEX_MAX_TEMP));
+                today.putDouble(WeatherEntry.COLUMN_MIN_TEMP, cursor.getDouble(INDEX_MIN_TEMP));
+            }
+        } finally {
+            cursor.close();
+        }
+        return today;
+    }
+}
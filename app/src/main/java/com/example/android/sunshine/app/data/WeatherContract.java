@@ -43,6 +43,36 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_HISTORY = "history";
+    public static final String PATH_STAGING = "staging";
+    public static final String PATH_TRANSFER = "transfer";
+
+    // Methods understood by WeatherProvider.call().
+
+    // Returns the first forecast on or after today for the location setting passed as the arg,
+    // as a Bundle keyed by the WeatherEntry column names (date, weather_id, short_desc, max and
+    // min), or null if there is none.  Cheaper than a query for consumers that only need today.
+    public static final String METHOD_GET_TODAY = "getToday";
+
+    // Runs the retention policies; the location setting to keep goes in the arg, and
+    // EXTRA_COMPACT asks for free pages to be reclaimed too.
+    public static final String METHOD_RUN_RETENTION = "runRetention";
+    public static final String EXTRA_COMPACT = "compact";
+    public static final String RESULT_WEATHER_DELETED = "weatherDeleted";
+    public static final String RESULT_LOCATIONS_DELETED = "locationsDeleted";
+    public static final String RESULT_PAGES_RECLAIMED = "pagesReclaimed";
+    // Past days of the kept location are moved to the history table rather than dropped; this
+    // is how many of the deleted weather rows were archived there.
+    public static final String RESULT_DAYS_ARCHIVED = "daysArchived";
+    // History rows trimmed because the database was still above its size limit.
+    public static final String RESULT_HISTORY_DELETED = "historyDeleted";
+
+    // Publishes the weather rows bulk inserted into WeatherEntry.STAGING_URI in one short
+    // transaction: for each staged location, its rows from the first staged date on are replaced
+    // by the staged ones.  Returns how many rows were published.
+    public static final String METHOD_PUBLISH_STAGING = "publishStaging";
+    public static final String RESULT_ROWS_PUBLISHED = "rowsPublished";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -86,12 +116,28 @@ public class WeatherContract {
         }
     }
 
+    /* Inner class that defines the table contents of the weather condition lookup table */
+    public static final class ConditionEntry {
+
+        public static final String TABLE_NAME = "weather_condition";
+
+        // Weather id as returned by API, one row per id
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        // Short description of the condition, stored once here instead of on every weather row
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI =
                 BASE_CONTENT_URI.buildUpon().appendPath(PATH_WEATHER).build();
 
+        // Weather rows written here are invisible until METHOD_PUBLISH_STAGING is called
+        public static final Uri STAGING_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_STAGING).build();
+
         public static final String CONTENT_TYPE =
                 ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER;
         public static final String CONTENT_ITEM_TYPE =
@@ -107,9 +153,16 @@ public class WeatherContract {
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
         // Short description and long description of the weather, as provided by API.
-        // e.g "clear" vs "sky is clear".
+        // e.g "clear" vs "sky is clear".  Not stored on the row: it lives in the
+        // ConditionEntry table and is looked up by weather id when queried.
         public static final String COLUMN_SHORT_DESC = "short_desc";
 
+        // The measures below are read and written as floats, but stored as fixed point
+        // integers in hundredths (see WeatherRowCodec).  Selections on CONTENT_URI are
+        // rewritten to compare the decoded values, so "max > 20" means twenty degrees and
+        // short_desc can be selected on; a column of another table in a selection has to be
+        // qualified with its table name, or it is taken for the weather column.
+
         // Min and max temperatures for the day (stored as floats)
         public static final String COLUMN_MIN_TEMP = "min";
         public static final String COLUMN_MAX_TEMP = "max";
@@ -144,6 +197,25 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        // Query parameters understood on weather/* URIs.  "limit" caps the number of rows, and
+        // "after" is an exclusive date to continue a scan from (keyset paging): pass the date of
+        // the last row of a page to get the next one.
+        public static final String PARAM_LIMIT = "limit";
+        public static final String PARAM_AFTER = "after";
+
+        public static Uri buildWeatherLocationWithStartDate(
+                String locationSetting, long startDate, int limit) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        public static Uri buildWeatherLocationAfterDate(
+                String locationSetting, long afterDate, int limit) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_AFTER, Long.toString(afterDate))
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
@@ -164,5 +236,205 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        public static long getAfterDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_AFTER);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        /**
+         * @return The uri's row limit, or 0 for none
+         * @throws IllegalArgumentException If the limit is not a whole number of rows
+         */
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(PARAM_LIMIT);
+            if (null == limitString || limitString.length() == 0)
+                return 0;
+
+            int limit;
+            try {
+                limit = Integer.parseInt(limitString);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit \"" + limitString +
+                        "\" in uri: " + uri, e);
+            }
+            if (limit < 0) {
+                throw new IllegalArgumentException("Negative limit " + limit + " in uri: " + uri);
+            }
+            return limit;
+        }
+    }
+
+    /*
+        Inner class that defines the single row returned by weather/[location]/summary.  The
+        aggregates are computed in SQLite over an inclusive date range, so a caller that needs
+        "the warmest day of the week" reads one row instead of looping over the forecast.
+     */
+    public static final class SummaryEntry {
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                        PATH_WEATHER + "/" + PATH_SUMMARY;
+
+        // Query parameter with the last date of the range, inclusive.  The first date uses the
+        // same "date" parameter as a weather location URI with a start date.
+        public static final String PARAM_END_DATE = "end";
+
+        // Number of days in the range
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        // Lowest min and highest max temperature over the range
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+
+        // Averages over the range
+        public static final String COLUMN_AVG_MIN_TEMP = "avg_min";
+        public static final String COLUMN_AVG_MAX_TEMP = "avg_max";
+        public static final String COLUMN_AVG_HUMIDITY = "avg_humidity";
+        public static final String COLUMN_AVG_WIND_SPEED = "avg_wind";
+
+        // Dates of the warmest, coldest and windiest days.  The rainiest day is the most humid
+        // day with a storm, drizzle or rain condition, null if it stays dry.
+        public static final String COLUMN_WARMEST_DATE = "warmest_date";
+        public static final String COLUMN_COLDEST_DATE = "coldest_date";
+        public static final String COLUMN_WINDIEST_DATE = "windiest_date";
+        public static final String COLUMN_RAINIEST_DATE = "rainiest_date";
+
+        // Number of days per condition bucket, using the OpenWeatherMap weather id ranges
+        public static final String COLUMN_STORM_DAYS = "storm_days";
+        public static final String COLUMN_DRIZZLE_DAYS = "drizzle_days";
+        public static final String COLUMN_RAIN_DAYS = "rain_days";
+        public static final String COLUMN_SNOW_DAYS = "snow_days";
+        public static final String COLUMN_ATMOSPHERE_DAYS = "atmosphere_days";
+        public static final String COLUMN_CLEAR_DAYS = "clear_days";
+        public static final String COLUMN_CLOUDY_DAYS = "cloudy_days";
+
+        public static Uri buildSummaryUri(String locationSetting, long startDate, long endDate) {
+            return WeatherEntry.CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(PATH_SUMMARY)
+                    .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                            Long.toString(normalizeDate(startDate)))
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
+
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_END_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the history table.  Past days are folded
+        in here when they leave the weather table: one row per day for recent weeks, then one
+        per week, then one per month, so a year of trend costs a few dozen rows.
+     */
+    public static final class HistoryEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HISTORY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+
+        public static final String TABLE_NAME = "history";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+
+        // Length of the period a row covers, one of the PERIOD_* values
+        public static final String COLUMN_PERIOD = "period";
+        public static final int PERIOD_DAY = 0;
+        public static final int PERIOD_WEEK = 1;
+        public static final int PERIOD_MONTH = 2;
+
+        // First day of the period: the day itself, the Monday of the week or the first of the
+        // month, normalized like WeatherEntry dates
+        public static final String COLUMN_PERIOD_START = "period_start";
+
+        // Number of days the period actually has data for
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        // Lowest min and highest max temperature of the period, and the mean of the daily
+        // midpoints.  Stored as fixed point like the weather measures, read as floats.
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        public static final String COLUMN_MEAN_TEMP = "mean";
+
+        // The weather id seen on the most days of the period
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        // Query parameter with the last period start of the range, inclusive.  The first one
+        // uses the same "date" parameter as a weather location URI with a start date.
+        public static final String PARAM_END_DATE = "end";
+
+        public static Uri buildHistoryLocation(String locationSetting, long startDate,
+                                               long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                            Long.toString(normalizeDate(startDate)))
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartDateFromUri(Uri uri) {
+            return WeatherEntry.getStartDateFromUri(uri);
+        }
+
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_END_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /*
+        Inner class that defines the streamed export and import of whole tables.  Open
+        transfer/[table] with ContentResolver.openInputStream to read the table out, or with
+        openOutputStream to load rows into it.  Rows name their location by location setting
+        rather than row id, so a transfer works across devices; import locations before their
+        weather or history.
+     */
+    public static final class TransferEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_TRANSFER).build();
+
+        // One header line of column names, then a line per row
+        public static final String FORMAT_CSV = "csv";
+        // One JSON object per line, keyed by column name
+        public static final String FORMAT_LDJSON = "ldjson";
+
+        public static final String CSV_TYPE = "text/csv";
+        public static final String LDJSON_TYPE = "application/x-ndjson";
+
+        public static final String PARAM_FORMAT = "format";
+
+        // The table is the TABLE_NAME of LocationEntry, WeatherEntry or HistoryEntry
+        public static Uri buildTransferUri(String tableName, String format) {
+            return CONTENT_URI.buildUpon().appendPath(tableName)
+                    .appendQueryParameter(PARAM_FORMAT, format).build();
+        }
+
+        public static String getTableFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static String getFormatFromUri(Uri uri) {
+            String format = uri.getQueryParameter(PARAM_FORMAT);
+            return FORMAT_LDJSON.equals(format) ? FORMAT_LDJSON : FORMAT_CSV;
+        }
     }
 }
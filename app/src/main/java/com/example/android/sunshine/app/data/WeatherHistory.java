@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * The archive tier of the weather database.
+ * <p>
+ * Past weather rows are copied into the {@link HistoryEntry} table as daily rows right before
+ * retention deletes them.  Daily rows older than {@link #DAILY_DAYS} are then folded into one row
+ * per week, and weekly rows older than {@link #WEEKLY_DAYS} into one row per month.  Periods are
+ * only folded once they are complete, so a period is written exactly once at each level.
+ * <p>
+ * A week belongs to the month it starts in.
+ */
+class WeatherHistory {
+
+    // Daily rows are kept for eight weeks, weekly rows for a year
+    static final int DAILY_DAYS = 8 * 7;
+    static final int WEEKLY_DAYS = 366;
+
+    private static final String HISTORY_COLUMNS = "(" +
+            HistoryEntry.COLUMN_LOC_KEY + ", " +
+            HistoryEntry.COLUMN_PERIOD + ", " +
+            HistoryEntry.COLUMN_PERIOD_START + ", " +
+            HistoryEntry.COLUMN_DAY_COUNT + ", " +
+            HistoryEntry.COLUMN_MIN_TEMP + ", " +
+            HistoryEntry.COLUMN_MAX_TEMP + ", " +
+            HistoryEntry.COLUMN_MEAN_TEMP + ", " +
+            HistoryEntry.COLUMN_WEATHER_ID + ")";
+
+    // Weather rows are already fixed point, so they are copied as they are stored
+    private static final String ARCHIVE_SQL = "INSERT INTO " + HistoryEntry.TABLE_NAME + " " +
+            HISTORY_COLUMNS + " SELECT " +
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            HistoryEntry.PERIOD_DAY + ", " +
+            WeatherEntry.COLUMN_DATE + ", " +
+            "1, " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            "(" + WeatherEntry.COLUMN_MIN_TEMP + " + " + WeatherEntry.COLUMN_MAX_TEMP + ") / 2, " +
+            WeatherEntry.COLUMN_WEATHER_ID +
+            " FROM " + WeatherEntry.TABLE_NAME + " WHERE ";
+
+    // Dates are local midnights, so the period boundaries are worked out in local time
+    private static String weekStart(String date) {
+        return "CAST(strftime('%s', " + date + " / 1000, 'unixepoch', 'localtime', " +
+                "'-6 days', 'weekday 1', 'utc') AS INTEGER) * 1000";
+    }
+
+    private static String monthStart(String date) {
+        return "CAST(strftime('%s', " + date + " / 1000, 'unixepoch', 'localtime', " +
+                "'start of month', 'utc') AS INTEGER) * 1000";
+    }
+
+    private static final String WEEKLY_FOLD_SQL = buildFoldSql(HistoryEntry.PERIOD_DAY,
+            HistoryEntry.PERIOD_WEEK, weekStart(HistoryEntry.TABLE_NAME + "." +
+                    HistoryEntry.COLUMN_PERIOD_START),
+            weekStart("source." + HistoryEntry.COLUMN_PERIOD_START));
+
+    private static final String MONTHLY_FOLD_SQL = buildFoldSql(HistoryEntry.PERIOD_WEEK,
+            HistoryEntry.PERIOD_MONTH, monthStart(HistoryEntry.TABLE_NAME + "." +
+                    HistoryEntry.COLUMN_PERIOD_START),
+            monthStart("source." + HistoryEntry.COLUMN_PERIOD_START));
+
+    /*
+        Aggregates every row of one period length before the cutoff into rows of the next length.
+        The mean is weighted by day count, and the dominant condition is the weather id covering
+        the most days, the lowest (most severe) id winning a tie.  Takes the cutoff twice.
+     */
+    private static String buildFoldSql(int fromPeriod, int toPeriod, String target,
+                                       String sourceTarget) {
+        return "INSERT INTO " + HistoryEntry.TABLE_NAME + " " + HISTORY_COLUMNS + " SELECT " +
+                HistoryEntry.COLUMN_LOC_KEY + ", " +
+                toPeriod + ", " +
+                target + ", " +
+                "SUM(" + HistoryEntry.COLUMN_DAY_COUNT + "), " +
+                "MIN(" + HistoryEntry.COLUMN_MIN_TEMP + "), " +
+                "MAX(" + HistoryEntry.COLUMN_MAX_TEMP + "), " +
+                "SUM(" + HistoryEntry.COLUMN_MEAN_TEMP + " * " + HistoryEntry.COLUMN_DAY_COUNT +
+                ") / SUM(" + HistoryEntry.COLUMN_DAY_COUNT + "), " +
+                "(SELECT source." + HistoryEntry.COLUMN_WEATHER_ID + " FROM " +
+                HistoryEntry.TABLE_NAME + " AS source WHERE source." +
+                HistoryEntry.COLUMN_LOC_KEY + " = " + HistoryEntry.TABLE_NAME + "." +
+                HistoryEntry.COLUMN_LOC_KEY + " AND source." + HistoryEntry.COLUMN_PERIOD + " = " +
+                fromPeriod + " AND source." + HistoryEntry.COLUMN_PERIOD_START + " < ? AND " +
+                sourceTarget + " = " + target +
+                " GROUP BY source." + HistoryEntry.COLUMN_WEATHER_ID +
+                " ORDER BY SUM(source." + HistoryEntry.COLUMN_DAY_COUNT + ") DESC, source." +
+                HistoryEntry.COLUMN_WEATHER_ID + " ASC LIMIT 1)" +
+                " FROM " + HistoryEntry.TABLE_NAME +
+                " WHERE " + HistoryEntry.COLUMN_PERIOD + " = " + fromPeriod + " AND " +
+                HistoryEntry.COLUMN_PERIOD_START + " < ?" +
+                " GROUP BY " + HistoryEntry.COLUMN_LOC_KEY + ", " + target;
+    }
+
+    private static final String[] FIXED_POINT_COLUMNS = {
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_MEAN_TEMP
+    };
+
+    private static final String[] ALL_COLUMNS = {
+            HistoryEntry._ID,
+            HistoryEntry.COLUMN_LOC_KEY,
+            HistoryEntry.COLUMN_PERIOD,
+            HistoryEntry.COLUMN_PERIOD_START,
+            HistoryEntry.COLUMN_DAY_COUNT,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_MEAN_TEMP,
+            HistoryEntry.COLUMN_WEATHER_ID
+    };
+
+    //location_id = (SELECT _id FROM location WHERE location_setting = ?) AND
+    //period_start >= ? AND period_start <= ?
+    private static final String RANGE_SELECTION =
+            HistoryEntry.COLUMN_LOC_KEY + " = (SELECT " + LocationEntry._ID + " FROM " +
+                    LocationEntry.TABLE_NAME + " WHERE " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?) AND " +
+                    HistoryEntry.COLUMN_PERIOD_START + " >= ? AND " +
+                    HistoryEntry.COLUMN_PERIOD_START + " <= ?";
+
+    /**
+     * Copies the weather rows matching the selection into daily history rows.  Meant to run in
+     * the same transaction as the delete of those rows.
+     */
+    static void archive(SQLiteDatabase db, String weatherSelection, String[] selectionArgs) {
+        db.execSQL(ARCHIVE_SQL + weatherSelection,
+                selectionArgs != null ? selectionArgs : new String[0]);
+    }
+
+    /**
+     * Folds the complete weeks and months that have aged past their level into the next one.
+     *
+     * @return The number of history rows folded away
+     */
+    static int rollUp(SQLiteDatabase db, long today) {
+        Calendar weekCutoff = Calendar.getInstance();
+        weekCutoff.setTimeInMillis(today);
+        weekCutoff.add(Calendar.DAY_OF_YEAR, -DAILY_DAYS);
+        // back to the Monday that starts that week
+        int daysSinceMonday = (weekCutoff.get(Calendar.DAY_OF_WEEK) - Calendar.MONDAY + 7) % 7;
+        weekCutoff.add(Calendar.DAY_OF_YEAR, -daysSinceMonday);
+
+        Calendar monthCutoff = Calendar.getInstance();
+        monthCutoff.setTimeInMillis(today);
+        monthCutoff.add(Calendar.DAY_OF_YEAR, -WEEKLY_DAYS);
+        monthCutoff.set(Calendar.DAY_OF_MONTH, 1);
+
+        db.beginTransaction();
+        try {
+            int folded = fold(db, WEEKLY_FOLD_SQL, HistoryEntry.PERIOD_DAY,
+                    WeatherContract.normalizeDate(weekCutoff.getTimeInMillis()));
+            folded += fold(db, MONTHLY_FOLD_SQL, HistoryEntry.PERIOD_WEEK,
+                    WeatherContract.normalizeDate(monthCutoff.getTimeInMillis()));
+            db.setTransactionSuccessful();
+            return folded;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static int fold(SQLiteDatabase db, String foldSql, int fromPeriod, long cutoff) {
+        String cutoffArg = Long.toString(cutoff);
+        db.execSQL(foldSql, new String[]{cutoffArg, cutoffArg});
+        return db.delete(HistoryEntry.TABLE_NAME,
+                HistoryEntry.COLUMN_PERIOD + " = ? AND " + HistoryEntry.COLUMN_PERIOD_START + " < ?",
+                new String[]{Integer.toString(fromPeriod), cutoffArg});
+    }
+
+    /**
+     * Builds the read behind history/[location]: every period of the location starting in the
+     * range, oldest first unless asked otherwise, with the temperatures decoded.
+     */
+    static WeatherProvider.ReadQuery build(String locationSetting, long startDate, long endDate,
+                                           String[] projection, String sortOrder) {
+        return new WeatherProvider.ReadQuery(SQLiteQueryBuilder.buildQueryString(false,
+                HistoryEntry.TABLE_NAME,
+                decodeProjection(projection),
+                RANGE_SELECTION,
+                null,
+                null,
+                sortOrder != null ? sortOrder : HistoryEntry.COLUMN_PERIOD_START + " ASC",
+                null
+        ), new String[]{locationSetting, Long.toString(startDate), Long.toString(endDate)});
+    }
+
+    /**
+     * Rewrites a projection on the history table so the temperatures come back as floats.
+     */
+    static String[] decodeProjection(String[] projection) {
+        String[] columns = projection != null ? projection : ALL_COLUMNS;
+        List<String> decoded = new ArrayList<String>(columns.length);
+        for (String column : columns) {
+            decoded.add(decodeColumn(column));
+        }
+        return decoded.toArray(new String[decoded.size()]);
+    }
+
+    private static String decodeColumn(String column) {
+        for (String fixedPoint : FIXED_POINT_COLUMNS) {
+            if (fixedPoint.equals(column)) {
+                return column + " / " + WeatherRowCodec.SCALE + ".0 AS " + column;
+            }
+        }
+        return column;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.HashMap;
+
+/**
+ * Maps location settings to the location row ids the weather table is keyed by, so a location
+ * scoped read can filter weather.location_id directly instead of joining the location table to
+ * find it.
+ * <p>
+ * Only locations that exist are remembered.  The provider drops the whole map after every write
+ * with {@link #invalidate}, and a lookup that raced with a write is not kept, so an id is never
+ * used after its location was deleted or replaced.
+ */
+class WeatherLocationKeys {
+
+    static final long UNKNOWN = -1;
+
+    private static final String LOOKUP_SQL = "SELECT " + LocationEntry._ID + " FROM " +
+            LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    private final HashMap<String, Long> mKeys = new HashMap<String, Long>();
+    private long mGeneration;
+
+    /**
+     * @return The row id of the location, or {@link #UNKNOWN} if there is no such location
+     */
+    long get(SQLiteDatabase db, String locationSetting) {
+        long generation;
+        synchronized (this) {
+            Long key = mKeys.get(locationSetting);
+            if (key != null) {
+                return key;
+            }
+            generation = mGeneration;
+        }
+
+        long key;
+        try {
+            key = DatabaseUtils.longForQuery(db, LOOKUP_SQL, new String[]{locationSetting});
+        } catch (SQLiteDoneException e) {
+            return UNKNOWN;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mKeys.put(locationSetting, key);
+            }
+        }
+        return key;
+    }
+
+    synchronized void invalidate() {
+        mGeneration++;
+        mKeys.clear();
+    }
+}
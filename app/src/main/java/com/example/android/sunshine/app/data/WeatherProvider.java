@@ -21,34 +21,107 @@ import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private final WeatherQueryCache mQueryCache = new WeatherQueryCache();
+    private final WeatherRetention mRetention = new WeatherRetention();
+    private final WeatherProviderStats mStats = new WeatherProviderStats();
+    private final WeatherReadStatements mReadStatements = new WeatherReadStatements();
+    private final WeatherLocationKeys mLocationKeys = new WeatherLocationKeys();
+    private volatile boolean mLocationKeyReads = true;
+    // Moves on after every write that changed rows; see getDataVersion
+    private static final AtomicLong sDataVersion = new AtomicLong();
+    private final TodayForecastCache mTodayCache = new TodayForecastCache(
+            new TodayForecastCache.Loader() {
+                @Override
+                public Cursor queryFirstRow(String locationSetting, long startDate,
+                                            String[] projection) {
+                    return runReadQuery(getWeatherByLocationSetting(
+                            WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                                    locationSetting, startDate, 1),
+                            projection, null));
+                }
+            });
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_SUMMARY = 103;
+    static final int HISTORY = 200;
+    static final int HISTORY_WITH_LOCATION = 201;
     static final int LOCATION = 300;
+    static final int STAGING = 400;
+    static final int TRANSFER = 500;
+
+    //This is an inner join which looks like
+    //weather INNER JOIN location ON weather.location_id = location._id
+    private static final String sWeatherByLocationSettingTables =
+            WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                    WeatherContract.LocationEntry.TABLE_NAME +
+                    " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+                    " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry._ID;
+
+    /**
+     * A read as it is sent to SQLite: the statement and its arguments.  Building it apart from
+     * running it lets the tests check the query plan of exactly what each route runs.
+     */
+    static final class ReadQuery {
+        final String mSql;
+        final String[] mArgs;
+        // Typed arguments bound by WeatherReadStatements.Binder, used instead of mArgs when set
+        final Object[] mBindArgs;
+
+        ReadQuery(String sql, String[] args) {
+            this(sql, args, null);
+        }
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+        private ReadQuery(String sql, String[] args, Object[] bindArgs) {
+            mSql = sql;
+            mArgs = args;
+            mBindArgs = bindArgs;
+        }
 
-    static{
-        sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
-        
-        //This is an inner join which looks like
-        //weather INNER JOIN location ON weather.location_id = location._id
-        sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
-                        WeatherContract.LocationEntry.TABLE_NAME +
-                        " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
-                        "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
-                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
-                        "." + WeatherContract.LocationEntry._ID);
+        static ReadQuery bound(String sql, Object[] bindArgs) {
+            return new ReadQuery(sql, null, bindArgs);
+        }
+
+        // The same arguments with another statement, e.g. the query plan of this one
+        ReadQuery withSql(String sql) {
+            return new ReadQuery(sql, mArgs, mBindArgs);
+        }
+
+        Cursor run(SQLiteDatabase db) {
+            if (mBindArgs == null) {
+                return db.rawQuery(mSql, mArgs);
+            }
+            return db.rawQueryWithFactory(
+                    new WeatherReadStatements.Binder(mBindArgs), mSql, null, null);
+        }
     }
 
     //location.location_setting = ?
@@ -68,44 +141,291 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
-    private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+    //weather.location_id = ?
+    private static final String sLocationKeySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    private static final String sLocationKeyWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationKeyAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    private static final String sLocationPrefix = WeatherContract.LocationEntry.TABLE_NAME + ".";
+
+    // Columns only the location table has, so projecting one needs the join
+    private static final List<String> sLocationOnlyColumns = Arrays.asList(
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+
+    //date > ?
+    private static final String sAfterDateSelection =
+            " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ";
+
+    private static final String sDateAscendingSortOrder =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    private ReadQuery getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
 
-        String[] selectionArgs;
-        String selection;
+        int filters = getLocationKeyFilter(projection);
+        int argCount = 0;
+        if (startDate != 0) {
+            filters |= WeatherReadStatements.FROM_DATE;
+            argCount++;
+        }
+        // Keyset paging: continue after the last date the caller has seen.  That only makes
+        // sense in date order, which the (location_id, date) unique index gives us cheaply.
+        if (afterDate != 0) {
+            filters |= WeatherReadStatements.AFTER_DATE;
+            argCount++;
+        }
+        if (limit > 0) {
+            filters |= WeatherReadStatements.LIMIT;
+            argCount++;
+        }
+        if ((afterDate != 0 || limit > 0) && sortOrder == null) {
+            sortOrder = sDateAscendingSortOrder;
+        }
+
+        // Arguments in the order the statement's parameters appear
+        Object[] bindArgs = startLocationArgs(filters, projection, locationSetting, argCount);
+        int arg = bindArgs.length - argCount;
+        if (startDate != 0) {
+            bindArgs[arg++] = startDate;
+        }
+        if (afterDate != 0) {
+            bindArgs[arg++] = afterDate;
+        }
+        if (limit > 0) {
+            bindArgs[arg] = (long) limit;
+        }
+        return ReadQuery.bound(getLocationReadSql(filters, projection, sortOrder), bindArgs);
+    }
+
+    private ReadQuery getWeatherByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+
+        int filters = getLocationKeyFilter(projection) | WeatherReadStatements.ON_DATE;
+        Object[] bindArgs = startLocationArgs(filters, projection, locationSetting, 1);
+        bindArgs[bindArgs.length - 1] = date;
+        return ReadQuery.bound(getLocationReadSql(filters, projection, sortOrder), bindArgs);
+    }
+
+    /*
+        LOCATION_KEY when the read can filter weather.location_id itself: location key reads are
+        on and the projection has nothing from the location table but its setting, which the
+        caller already gave us.
+     */
+    private int getLocationKeyFilter(String[] projection) {
+        if (!mLocationKeyReads || projection == null) {
+            return 0;
+        }
+        for (String column : projection) {
+            if (column.startsWith(sLocationPrefix) ?
+                    !isLocationSetting(column) : sLocationOnlyColumns.contains(column)) {
+                return 0;
+            }
+        }
+        return WeatherReadStatements.LOCATION_KEY;
+    }
+
+    private static boolean isLocationSetting(String column) {
+        return WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING.equals(column) ||
+                (sLocationPrefix + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                        .equals(column);
+    }
+
+    /*
+        The arguments of a location read up to its location filter, with room for extraCount
+        more after it.  A location key read has the location setting bound once for each time
+        it is projected, then the location's row id; a joined read has the setting.
+     */
+    private Object[] startLocationArgs(int filters, String[] projection, String locationSetting,
+                                       int extraCount) {
+        if ((filters & WeatherReadStatements.LOCATION_KEY) == 0) {
+            Object[] bindArgs = new Object[1 + extraCount];
+            bindArgs[0] = locationSetting;
+            return bindArgs;
+        }
+        int settingColumns = 0;
+        for (String column : projection) {
+            if (isLocationSetting(column)) {
+                settingColumns++;
+            }
+        }
+        Object[] bindArgs = new Object[settingColumns + 1 + extraCount];
+        for (int i = 0; i < settingColumns; i++) {
+            bindArgs[i] = locationSetting;
+        }
+        bindArgs[settingColumns] = mLocationKeys.get(mOpenHelper.getReadableDatabase(),
+                locationSetting);
+        return bindArgs;
+    }
+
+    /*
+        The statement for a location scoped read of the given shape, built on first use.
+     */
+    private String getLocationReadSql(int filters, String[] projection, String sortOrder) {
+        String sql = mReadStatements.get(filters, projection, sortOrder);
+        if (sql != null) {
+            return sql;
+        }
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+        boolean locationKey = (filters & WeatherReadStatements.LOCATION_KEY) != 0;
+        String selection;
+        if ((filters & WeatherReadStatements.ON_DATE) != 0) {
+            selection = locationKey ? sLocationKeyAndDaySelection : sLocationSettingAndDaySelection;
+        } else if ((filters & WeatherReadStatements.FROM_DATE) != 0) {
+            selection = locationKey ?
+                    sLocationKeyWithStartDateSelection : sLocationSettingWithStartDateSelection;
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selection = locationKey ? sLocationKeySelection : sLocationSettingSelection;
+        }
+        if ((filters & WeatherReadStatements.AFTER_DATE) != 0) {
+            selection += sAfterDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
+        String[] columns;
+        if (locationKey) {
+            columns = WeatherRowCodec.decodeProjection(projection, false);
+            for (int i = 0; i < columns.length; i++) {
+                if (isLocationSetting(columns[i])) {
+                    columns[i] = "? AS " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING;
+                }
+            }
+        } else {
+            columns = WeatherRowCodec.decodeProjection(projection, true);
+        }
+        sql = SQLiteQueryBuilder.buildQueryString(false,
+                locationKey ? WeatherContract.WeatherEntry.TABLE_NAME :
+                        sWeatherByLocationSettingTables,
+                columns,
                 selection,
-                selectionArgs,
                 null,
                 null,
-                sortOrder
+                sortOrder,
+                null
         );
+        // buildQueryString only takes a literal limit
+        if ((filters & WeatherReadStatements.LIMIT) != 0) {
+            sql += " LIMIT ?";
+        }
+        mReadStatements.put(filters, projection, sortOrder, sql);
+        return sql;
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
+    /**
+     * Turns location key reads on or off.  They are on unless a test or benchmark wants the
+     * joined plan for comparison.
+     */
+    void setLocationKeyReads(boolean enabled) {
+        mLocationKeyReads = enabled;
+    }
+
+    private ReadQuery getWeatherSummary(Uri uri) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.SummaryEntry.getEndDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+        return WeatherSummaryQuery.build(locationSetting, startDate, endDate);
+    }
+
+    /**
+     * Builds the read a query on one of the routes runs, without running it.
+     */
+    ReadQuery buildReadQuery(Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder) {
+        switch (sUriMatcher.match(uri)) {
+            // "weather/*/*"
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                return getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+            // "weather/*"
+            case WEATHER_WITH_LOCATION:
+                return getWeatherByLocationSetting(uri, projection, sortOrder);
+            // "weather/*/summary"
+            case WEATHER_SUMMARY:
+                return getWeatherSummary(uri);
+            // "weather"
+            case WEATHER:
+                return new ReadQuery(SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherRowCodec.decodeProjection(projection, false),
+                        WeatherRowCodec.decodeSelection(selection),
+                        null,
+                        null,
+                        sortOrder,
+                        null
+                ), selectionArgs);
+            // "history/*"
+            case HISTORY_WITH_LOCATION:
+                return WeatherHistory.build(
+                        WeatherContract.HistoryEntry.getLocationSettingFromUri(uri),
+                        WeatherContract.HistoryEntry.getStartDateFromUri(uri),
+                        WeatherContract.HistoryEntry.getEndDateFromUri(uri),
+                        projection, sortOrder);
+            // "history"
+            case HISTORY:
+                return new ReadQuery(SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.HistoryEntry.TABLE_NAME,
+                        WeatherHistory.decodeProjection(projection),
+                        selection,
+                        null,
+                        null,
+                        sortOrder,
+                        null
+                ), selectionArgs);
+            // "location"
+            case LOCATION:
+                return new ReadQuery(SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        null,
+                        null,
+                        sortOrder,
+                        null
+                ), selectionArgs);
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+    }
+
+    Cursor runReadQuery(ReadQuery read) {
+        return read.run(mOpenHelper.getReadableDatabase());
+    }
+
+    /**
+     * Returns the detail lines of SQLite's EXPLAIN QUERY PLAN for a query on the uri, one per
+     * line, so tests can check which indexes a route uses.
+     */
+    String explainQueryPlan(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+        ReadQuery read = buildReadQuery(uri, projection, selection, selectionArgs, sortOrder);
+        Cursor cursor = runReadQuery(read.withSql("EXPLAIN QUERY PLAN " + read.mSql));
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumn)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
     }
 
     /*
@@ -128,8 +448,17 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" + WeatherContract.PATH_SUMMARY,
+                WEATHER_SUMMARY);
+
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY, HISTORY);
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY + "/*", HISTORY_WITH_LOCATION);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_STAGING, STAGING);
+
+        matcher.addURI(authority, WeatherContract.PATH_TRANSFER + "/*", TRANSFER);
         return matcher;
     }
 
@@ -140,9 +469,33 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        warmUpDatabase();
         return true;
     }
 
+    /**
+     * Opens the database, creating or upgrading it if needed, on a background thread that starts
+     * while the first activity is still inflating.  SQLiteOpenHelper opens under a lock, so a
+     * query that comes in before the warm-up is done waits for it rather than opening the file a
+     * second time, and the open never runs on the main thread when the provider starts.
+     */
+    private void warmUpDatabase() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    mOpenHelper.getWritableDatabase();
+                    Log.d(LOG_TAG, "Database ready in " +
+                            (SystemClock.elapsedRealtime() - start) + "ms");
+                } catch (SQLiteException e) {
+                    // The first query opens it again and reports the error to its caller
+                    Log.e(LOG_TAG, "Error opening the database: " + e.getMessage(), e);
+                }
+            }
+        }, "WeatherDbWarmUp").start();
+    }
+
     /*
         Students: Here's where you'll code the getType function that uses the UriMatcher.  You can
         test this by uncommenting testGetType in TestProvider.
@@ -160,10 +513,19 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_SUMMARY:
+                return WeatherContract.SummaryEntry.CONTENT_ITEM_TYPE;
             case WEATHER:
+            case STAGING:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case HISTORY:
+            case HISTORY_WITH_LOCATION:
+                return WeatherContract.HistoryEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case TRANSFER:
+                return WeatherTransfer.getType(
+                        WeatherContract.TransferEntry.getFormatFromUri(uri));
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,68 +534,77 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
-        // Here's the switch statement that, given a URI, will determine what kind of request it is,
-        // and query the database accordingly.
+        // buildReadQuery has the switch statement that, given a URI, will determine what kind of
+        // request it is, and query the database accordingly.
+        final long start = System.nanoTime();
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
-            // "weather/*/*"
-            case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
-            // "weather/*"
-            case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
-                break;
-            }
-            // "weather"
-            case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
-            }
-            // "location"
-            case LOCATION: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.LocationEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
+        final int match = sUriMatcher.match(uri);
+
+        // The location scoped routes are the ones every consumer asks for after a sync, so those
+        // are served from the query cache when possible.
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        if (match == WEATHER_WITH_LOCATION_AND_DATE || match == WEATHER_WITH_LOCATION ||
+                match == WEATHER_SUMMARY) {
+            cacheKey = WeatherQueryCache.buildKey(uri, projection, selection, selectionArgs,
+                    sortOrder);
+            cacheGeneration = mQueryCache.getGeneration();
+            retCursor = mQueryCache.get(cacheKey);
+            if (retCursor != null) {
+                retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+                mStats.record(getRouteName(match), WeatherProviderStats.OP_QUERY,
+                        System.nanoTime() - start, 0, retCursor.getCount(),
+                        describe(uri, selection));
+                return retCursor;
             }
+        }
 
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        ReadQuery read = buildReadQuery(uri, projection, selection, selectionArgs, sortOrder);
+        final long waitStart = System.nanoTime();
+        retCursor = read.run(mOpenHelper.getReadableDatabase());
+        final long waitNanos = System.nanoTime() - waitStart;
+        // Filling the first window here makes the time and row count recorded below the real
+        // cost of the query, rather than leaving it to the first caller of getCount().
+        final int rows = retCursor.getCount();
+        if (cacheKey != null) {
+            retCursor = mQueryCache.put(cacheKey, cacheGeneration, retCursor);
         }
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        mStats.record(getRouteName(match), WeatherProviderStats.OP_QUERY,
+                System.nanoTime() - start, waitNanos, rows, describe(uri, selection));
         return retCursor;
     }
 
+    /**
+     * Number of queries answered from the query cache since the provider was created.
+     */
+    public long getQueryCacheHitCount() {
+        return mQueryCache.getHitCount();
+    }
+
+    /**
+     * Number of cacheable queries that had to go to the database.
+     */
+    public long getQueryCacheMissCount() {
+        return mQueryCache.getMissCount();
+    }
+
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        final long start = System.nanoTime();
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long waitNanos = System.nanoTime() - start;
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
 
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                        WeatherRowCodec.encode(db, values));
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
@@ -251,33 +622,49 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        invalidateCaches();
         getContext().getContentResolver().notifyChange(uri, null);
+        mStats.record(getRouteName(match), WeatherProviderStats.OP_INSERT,
+                System.nanoTime() - start, waitNanos, 1, describe(uri, null));
         return returnUri;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final long start = System.nanoTime();
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long waitNanos = System.nanoTime() - start;
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherRowCodec.decodeSelection(selection), selectionArgs);
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case HISTORY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HistoryEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case STAGING:
+                rowsDeleted = db.delete(WeatherStaging.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        // Because a null deletes all rows
-        if (rowsDeleted != 0) {
+        // Because a null deletes all rows.  Nothing reads the staged rows, so their deletes
+        // change nothing anybody can see.
+        if (rowsDeleted != 0 && match != STAGING) {
+            invalidateCaches();
             getContext().getContentResolver().notifyChange(uri, null);
         }
+        mStats.record(getRouteName(match), WeatherProviderStats.OP_DELETE,
+                System.nanoTime() - start, waitNanos, rowsDeleted, describe(uri, selection));
         return rowsDeleted;
     }
 
@@ -292,15 +679,18 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public int update(
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final long start = System.nanoTime();
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long waitNanos = System.nanoTime() - start;
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
 
         switch (match) {
             case WEATHER:
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherRowCodec.encode(db, values),
+                        WeatherRowCodec.decodeSelection(selection), selectionArgs);
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
@@ -310,23 +700,29 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
+            invalidateCaches();
             getContext().getContentResolver().notifyChange(uri, null);
         }
+        mStats.record(getRouteName(match), WeatherProviderStats.OP_UPDATE,
+                System.nanoTime() - start, waitNanos, rowsUpdated, describe(uri, selection));
         return rowsUpdated;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
+        final long start = System.nanoTime();
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
                 db.beginTransaction();
+                final long waitNanos = System.nanoTime() - start;
                 int returnCount = 0;
                 try {
                     for (ContentValues value : values) {
                         normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                                WeatherRowCodec.encode(db, value));
                         if (_id != -1) {
                             returnCount++;
                         }
@@ -335,13 +731,298 @@ public class WeatherProvider extends ContentProvider {
                 } finally {
                     db.endTransaction();
                 }
+                if (returnCount != 0) {
+                    invalidateCaches();
+                }
                 getContext().getContentResolver().notifyChange(uri, null);
+                mStats.record(getRouteName(match), WeatherProviderStats.OP_BULK_INSERT,
+                        System.nanoTime() - start, waitNanos, returnCount, describe(uri, null));
                 return returnCount;
+            case STAGING:
+                return bulkInsertStaging(db, uri, values, start);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /*
+        Staged rows are invisible until published, so they go in in short transactions that let
+        readers in between, and without invalidating caches or notifying anybody.
+     */
+    private int bulkInsertStaging(SQLiteDatabase db, Uri uri, ContentValues[] values,
+                                  long start) {
+        long waitNanos = System.nanoTime() - start;
+        int returnCount = 0;
+        for (int batchStart = 0; batchStart < values.length;
+             batchStart += WeatherStaging.BATCH_SIZE) {
+            int batchEnd = Math.min(batchStart + WeatherStaging.BATCH_SIZE, values.length);
+            final long beginStart = System.nanoTime();
+            db.beginTransaction();
+            waitNanos += System.nanoTime() - beginStart;
+            try {
+                for (int i = batchStart; i < batchEnd; i++) {
+                    normalizeDate(values[i]);
+                    long _id = db.insert(WeatherStaging.TABLE_NAME, null,
+                            WeatherRowCodec.encode(db, values[i]));
+                    if (_id != -1) {
+                        returnCount++;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        mStats.record(getRouteName(STAGING), WeatherProviderStats.OP_BULK_INSERT,
+                System.nanoTime() - start, waitNanos, returnCount, describe(uri, null));
+        return returnCount;
+    }
+
+    /**
+     * Streams a whole table out ("r") or into the database ("w") through a pipe, so neither side
+     * ever holds the table in memory.  The rows are written or read on a thread of their own;
+     * an import notifies the table's observers once it has read the last line or stopped on an
+     * error.  Errors are logged and end the transfer; they never reach the caller.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != TRANSFER) {
+            throw new FileNotFoundException("Unknown uri: " + uri);
+        }
+        final String table = WeatherContract.TransferEntry.getTableFromUri(uri);
+        if (!WeatherTransfer.isTransferable(table)) {
+            throw new FileNotFoundException("Cannot transfer table " + table);
+        }
+        final String format = WeatherContract.TransferEntry.getFormatFromUri(uri);
+        final String detail = uri.toString();
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not open a pipe: " + e.getMessage());
+        }
+
+        if (mode.contains("w")) {
+            final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = System.nanoTime();
+                    long waitNanos = 0;
+                    int rows = 0;
+                    try {
+                        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                        waitNanos = System.nanoTime() - start;
+                        rows = WeatherTransfer.importRows(db, table, format, in);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Error importing " + table + ": " + e.getMessage(), e);
+                    } catch (RuntimeException e) {
+                        // An SQLException or a value the codec can't take.  This thread has
+                        // nobody to throw it to, and the process would go down with it
+                        Log.e(LOG_TAG, "Error importing " + table + ": " + e.getMessage(), e);
+                        closeQuietly(in);
+                    } finally {
+                        // Batches committed before an error still changed the table
+                        invalidateCaches();
+                        getContext().getContentResolver().notifyChange(
+                                getTableUri(table), null);
+                        mStats.record(getRouteName(TRANSFER), WeatherProviderStats.OP_IMPORT,
+                                System.nanoTime() - start, waitNanos, rows, detail);
+                    }
+                }
+            }, "WeatherImport").start();
+            return pipe[1];
+        }
+
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                long waitNanos = 0;
+                int rows = 0;
+                try {
+                    final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                    waitNanos = System.nanoTime() - start;
+                    rows = WeatherTransfer.export(db, table, format, out);
+                } catch (IOException e) {
+                    // Most often the reader closed its end early
+                    Log.w(LOG_TAG, "Export of " + table + " stopped: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error exporting " + table + ": " + e.getMessage(), e);
+                    closeQuietly(out);
+                } finally {
+                    mStats.record(getRouteName(TRANSFER), WeatherProviderStats.OP_EXPORT,
+                            System.nanoTime() - start, waitNanos, rows, detail);
+                }
+            }
+        }, "WeatherExport").start();
+        return pipe[0];
+    }
+
+    // Closes a pipe end a transfer thread gave up on, so the other side sees it end
+    private static void closeQuietly(Closeable stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static Uri getTableUri(String table) {
+        if (WeatherContract.LocationEntry.TABLE_NAME.equals(table)) {
+            return WeatherContract.LocationEntry.CONTENT_URI;
+        }
+        if (WeatherContract.HistoryEntry.TABLE_NAME.equals(table)) {
+            return WeatherContract.HistoryEntry.CONTENT_URI;
+        }
+        return WeatherContract.WeatherEntry.CONTENT_URI;
+    }
+
+    /**
+     * Prints the per route stats and the slow call log.  Pass "reset" to clear them after.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+        writer.println("Query cache: " + getQueryCacheHitCount() + " hits, " +
+                getQueryCacheMissCount() + " misses");
+        writer.println("Read statements: " + mReadStatements.getHitCount() + " reused, " +
+                mReadStatements.getMissCount() + " built");
+        if (args != null && Arrays.asList(args).contains("reset")) {
+            mStats.reset();
+            writer.println("Stats reset");
+        }
+    }
+
+    WeatherProviderStats getStats() {
+        return mStats;
+    }
+
+    WeatherReadStatements getReadStatements() {
+        return mReadStatements;
+    }
+
+    private static String getRouteName(int match) {
+        switch (match) {
+            case WEATHER:
+                return WeatherContract.PATH_WEATHER;
+            case WEATHER_WITH_LOCATION:
+                return WeatherContract.PATH_WEATHER + "/*";
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                return WeatherContract.PATH_WEATHER + "/*/#";
+            case WEATHER_SUMMARY:
+                return WeatherContract.PATH_WEATHER + "/*/" + WeatherContract.PATH_SUMMARY;
+            case HISTORY:
+                return WeatherContract.PATH_HISTORY;
+            case HISTORY_WITH_LOCATION:
+                return WeatherContract.PATH_HISTORY + "/*";
+            case LOCATION:
+                return WeatherContract.PATH_LOCATION;
+            case STAGING:
+                return WeatherContract.PATH_STAGING;
+            case TRANSFER:
+                return WeatherContract.PATH_TRANSFER + "/*";
+            default:
+                return "unknown";
+        }
+    }
+
+    private static String describe(Uri uri, String selection) {
+        return selection == null ? uri.toString() : uri + " where " + selection;
+    }
+
+    /**
+     * Moves the data version on and drops the cached query results, location keys, today's
+     * forecasts and forecast snapshot.  Called after every write that changed rows, once it has
+     * committed; each is read again when next asked for.
+     */
+    private void invalidateCaches() {
+        sDataVersion.incrementAndGet();
+        mQueryCache.invalidate();
+        mLocationKeys.invalidate();
+        ForecastSnapshot.onDataChanged(getContext());
+        mTodayCache.invalidate();
+    }
+
+    /**
+     * The version of the weather data in this process, which changes as soon as a write through
+     * the provider has committed.  A copy built from rows read after taking the version is
+     * current for as long as the version stays the same, which lets the copies kept outside the
+     * provider check that without a query or an observer.
+     */
+    static long getDataVersion() {
+        return sDataVersion.get();
+    }
+
+    /**
+     * Runs the WeatherContract METHOD_ calls.  ContentResolver.call only exists from API 11 on,
+     * while the app runs from API 10, so nothing reaches this on API 10: there
+     * Utility.getTodayForecast reads today with a one row query, and the sync writes and trims
+     * the weather rows in place instead of staging them and running retention.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_GET_TODAY.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("A location setting is required");
+            }
+            final long start = System.nanoTime();
+            Bundle today = mTodayCache.get(arg);
+            mStats.record(method, WeatherProviderStats.OP_CALL, System.nanoTime() - start, 0,
+                    today != null ? 1 : 0, arg);
+            return today;
+        }
+        if (WeatherContract.METHOD_RUN_RETENTION.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("A location setting to keep is required");
+            }
+            boolean compact = extras != null && extras.getBoolean(WeatherContract.EXTRA_COMPACT);
+            final long start = System.nanoTime();
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            final long waitNanos = System.nanoTime() - start;
+            Bundle result = mRetention.run(db, arg, compact);
+            if (result.getInt(WeatherContract.RESULT_WEATHER_DELETED) != 0) {
+                invalidateCaches();
+                getContext().getContentResolver().notifyChange(
+                        WeatherContract.WeatherEntry.CONTENT_URI, null);
+            }
+            if (result.getInt(WeatherContract.RESULT_DAYS_ARCHIVED) != 0 ||
+                    result.getInt(WeatherContract.RESULT_HISTORY_DELETED) != 0) {
+                getContext().getContentResolver().notifyChange(
+                        WeatherContract.HistoryEntry.CONTENT_URI, null);
+            }
+            if (result.getInt(WeatherContract.RESULT_LOCATIONS_DELETED) != 0) {
+                invalidateCaches();
+                getContext().getContentResolver().notifyChange(
+                        WeatherContract.LocationEntry.CONTENT_URI, null);
+            }
+            mStats.record(method, WeatherProviderStats.OP_CALL, System.nanoTime() - start,
+                    waitNanos, result.getInt(WeatherContract.RESULT_WEATHER_DELETED),
+                    arg + (compact ? " compact" : ""));
+            return result;
+        }
+        if (WeatherContract.METHOD_PUBLISH_STAGING.equals(method)) {
+            final long start = System.nanoTime();
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            final long waitNanos = System.nanoTime() - start;
+            int published = WeatherStaging.publish(db);
+            if (published != 0) {
+                invalidateCaches();
+                getContext().getContentResolver().notifyChange(
+                        WeatherContract.WeatherEntry.CONTENT_URI, null);
+            }
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.RESULT_ROWS_PUBLISHED, published);
+            mStats.record(method, WeatherProviderStats.OP_CALL, System.nanoTime() - start,
+                    waitNanos, published, WeatherStaging.TABLE_NAME);
+            return result;
+        }
+        // As ContentProvider.call does, which isn't there to call on API 10
+        return null;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
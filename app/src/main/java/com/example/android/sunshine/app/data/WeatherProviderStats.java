@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.text.format.DateFormat;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters behind {@link WeatherProvider#dump}: for each route and operation, how many calls,
+ * how long they took, how many rows they returned or changed, and how long they waited for the
+ * database.
+ * <p>
+ * The wait is the time spent getting the database and, for reads, getting a connection and a
+ * prepared statement; for a bulk insert, starting its transaction.  A reader that is stuck behind
+ * the sync writer shows it there.  Calls slower than the threshold also go to a short log.
+ * <p>
+ * Read them with
+ * {@code adb shell dumpsys activity provider com.example.android.sunshine.app/.data.WeatherProvider},
+ * adding {@code reset} to clear them.
+ */
+class WeatherProviderStats {
+    private static final String LOG_TAG = WeatherProviderStats.class.getSimpleName();
+
+    static final String OP_QUERY = "query";
+    static final String OP_INSERT = "insert";
+    static final String OP_BULK_INSERT = "bulkInsert";
+    static final String OP_UPDATE = "update";
+    static final String OP_DELETE = "delete";
+    static final String OP_CALL = "call";
+    static final String OP_EXPORT = "export";
+    static final String OP_IMPORT = "import";
+
+    static final long DEFAULT_SLOW_MILLIS = 100;
+    private static final int SLOW_LOG_SIZE = 32;
+
+    // Upper bounds of the latency buckets; the last bucket takes everything above
+    private static final long[] BUCKET_LIMITS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private static class Entry {
+        long mCount;
+        long mRows;
+        long mTotalNanos;
+        long mMaxNanos;
+        long mTotalWaitNanos;
+        long mMaxWaitNanos;
+        final long[] mBuckets = new long[BUCKET_LIMITS_MILLIS.length + 1];
+    }
+
+    private final long mSlowNanos;
+    // Sorted, so the dump reads the same from one run to the next
+    private final Map<String, Entry> mEntries = new TreeMap<String, Entry>();
+    private final LinkedList<String> mSlowLog = new LinkedList<String>();
+
+    WeatherProviderStats() {
+        this(DEFAULT_SLOW_MILLIS);
+    }
+
+    WeatherProviderStats(long slowMillis) {
+        mSlowNanos = slowMillis * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Records one call.
+     *
+     * @param route     The route, as the UriMatcher pattern or the call() method name
+     * @param operation One of the OP_* values
+     * @param nanos     Total time spent in the provider
+     * @param waitNanos Part of that time spent waiting for the database
+     * @param rows      Rows returned, inserted, updated or deleted
+     * @param detail    What to show in the slow log, typically the uri and selection
+     */
+    synchronized void record(String route, String operation, long nanos, long waitNanos,
+                             int rows, String detail) {
+        String key = route + " " + operation;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        entry.mCount++;
+        entry.mRows += rows;
+        entry.mTotalNanos += nanos;
+        entry.mMaxNanos = Math.max(entry.mMaxNanos, nanos);
+        entry.mTotalWaitNanos += waitNanos;
+        entry.mMaxWaitNanos = Math.max(entry.mMaxWaitNanos, waitNanos);
+        entry.mBuckets[bucketOf(nanos)]++;
+
+        if (nanos >= mSlowNanos) {
+            String line = DateFormat.format("MM-dd kk:mm:ss", System.currentTimeMillis()) + " " +
+                    key + " " + formatMillis(nanos) + " (waited " + formatMillis(waitNanos) +
+                    ") " + rows + " rows: " + detail;
+            Log.w(LOG_TAG, "Slow " + line);
+            mSlowLog.addLast(line);
+            if (mSlowLog.size() > SLOW_LOG_SIZE) {
+                mSlowLog.removeFirst();
+            }
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        for (int i = 0; i < BUCKET_LIMITS_MILLIS.length; i++) {
+            if (nanos < BUCKET_LIMITS_MILLIS[i] * NANOS_PER_MILLI) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS_MILLIS.length;
+    }
+
+    synchronized long getCount(String route, String operation) {
+        Entry entry = mEntries.get(route + " " + operation);
+        return entry == null ? 0 : entry.mCount;
+    }
+
+    synchronized long getRows(String route, String operation) {
+        Entry entry = mEntries.get(route + " " + operation);
+        return entry == null ? 0 : entry.mRows;
+    }
+
+    synchronized int getSlowLogSize() {
+        return mSlowLog.size();
+    }
+
+    synchronized void reset() {
+        mEntries.clear();
+        mSlowLog.clear();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Weather provider stats (slow threshold " + formatMillis(mSlowNanos) + ")");
+        for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+            Entry entry = item.getValue();
+            writer.println("  " + item.getKey() +
+                    ": count=" + entry.mCount +
+                    " rows=" + entry.mRows +
+                    " avg=" + formatMillis(entry.mTotalNanos / entry.mCount) +
+                    " max=" + formatMillis(entry.mMaxNanos) +
+                    " wait avg=" + formatMillis(entry.mTotalWaitNanos / entry.mCount) +
+                    " max=" + formatMillis(entry.mMaxWaitNanos));
+            StringBuilder histogram = new StringBuilder("    ");
+            for (int i = 0; i < entry.mBuckets.length; i++) {
+                histogram.append(i < BUCKET_LIMITS_MILLIS.length ?
+                        "<" + BUCKET_LIMITS_MILLIS[i] : ">=" + BUCKET_LIMITS_MILLIS[i - 1]);
+                histogram.append("ms:").append(entry.mBuckets[i]).append(' ');
+            }
+            writer.println(histogram.toString().trim());
+        }
+        writer.println("Slow calls (last " + SLOW_LOG_SIZE + ")");
+        for (String line : mSlowLog) {
+            writer.println("  " + line);
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.US, "%.2fms", nanos / (double) NANOS_PER_MILLI);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, in-memory cache of query results for the {@link WeatherProvider}.
+ * <p>
+ * After a sync the widgets, Muzei, the watch face updater and the notification all ask for the
+ * same handful of rows within a few milliseconds of each other.  Results are kept as immutable
+ * snapshots and each hit gets its own {@link SnapshotCursor} over the shared rows.
+ * <p>
+ * Every write that goes through the provider bumps a generation counter and drops all entries.
+ * A query records the generation before it touches the database and its result is only stored if
+ * no write happened in between, so a result read concurrently with a sync is never cached.
+ * Writes made directly through a {@link WeatherDbHelper} bypass the provider and are not seen.
+ */
+class WeatherQueryCache {
+
+    // Enough for the list, the detail view, the widgets and the "today" lookups.
+    private static final int MAX_ENTRIES = 16;
+    // Anything bigger than a couple of weeks of forecast is not worth holding on to.
+    static final int MAX_CACHED_ROWS = 32;
+
+    private final LinkedHashMap<String, Snapshot> mEntries =
+            new LinkedHashMap<String, Snapshot>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+
+    private static final class Snapshot {
+        final String[] columnNames;
+        final Object[][] rows;
+
+        Snapshot(String[] columnNames, Object[][] rows) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+        }
+    }
+
+    static String buildKey(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        return uri.toString() + '|' + Arrays.toString(projection) + '|' + selection + '|' +
+                Arrays.toString(selectionArgs) + '|' + sortOrder;
+    }
+
+    /**
+     * Returns a fresh cursor over the cached result for the key, or null on a miss.
+     */
+    synchronized Cursor get(String key) {
+        Snapshot snapshot = mEntries.get(key);
+        if (snapshot == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return new SnapshotCursor(snapshot.columnNames, snapshot.rows);
+    }
+
+    /**
+     * The generation to pass to {@link #put} for a query that is about to run.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Copies the cursor into the cache and returns a cursor to hand back to the caller in its
+     * place.  Results that are too large, or that were read while a write was in progress, are
+     * left alone and the original cursor is returned.
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        if (cursor == null || cursor.getCount() > MAX_CACHED_ROWS) {
+            return cursor;
+        }
+        Snapshot snapshot = new Snapshot(cursor.getColumnNames(), SnapshotCursor.copyRows(cursor));
+        cursor.close();
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, snapshot);
+            }
+        }
+        return new SnapshotCursor(snapshot.columnNames, snapshot.rows);
+    }
+
+    /**
+     * Drops every cached result.  Called by the provider after each write that changed rows.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
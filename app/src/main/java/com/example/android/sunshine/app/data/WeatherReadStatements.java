@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Build;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The SQL of the location scoped weather reads, built once for each shape of read and reused.
+ * <p>
+ * A shape is which filters the read has, its projection and its sort order; the values being
+ * filtered on are left as parameters, the limit included.  So the list reload, the widgets and
+ * the "today" lookups each send SQLite the same string on every call, which it finds in its own
+ * compiled statement cache, and the provider no longer rebuilds the string or the projection
+ * for them.  Dates and limits are bound as integers by {@link Binder} rather than formatted
+ * into strings first.
+ */
+class WeatherReadStatements {
+
+    // Filters a location read can have on top of location_setting = ?
+    static final int FROM_DATE = 1;
+    static final int AFTER_DATE = 2;
+    static final int LIMIT = 4;
+    static final int ON_DATE = 8;
+    // Filters weather.location_id instead of joining the location table
+    static final int LOCATION_KEY = 16;
+
+    // A few projections for each route is all the app asks for
+    private static final int MAX_ENTRIES = 16;
+
+    private final LinkedHashMap<Shape, String> mStatements =
+            new LinkedHashMap<Shape, String>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Shape, String> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long mHitCount;
+    private long mMissCount;
+
+    private static final class Shape {
+        final int mFilters;
+        final String[] mProjection;
+        final String mSortOrder;
+        final int mHash;
+
+        Shape(int filters, String[] projection, String sortOrder) {
+            mFilters = filters;
+            mProjection = projection;
+            mSortOrder = sortOrder;
+            mHash = 31 * (31 * filters + Arrays.hashCode(projection)) +
+                    (sortOrder != null ? sortOrder.hashCode() : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            Shape other = (Shape) o;
+            return mFilters == other.mFilters && mHash == other.mHash &&
+                    Arrays.equals(mProjection, other.mProjection) &&
+                    TextUtils.equals(mSortOrder, other.mSortOrder);
+        }
+    }
+
+    /**
+     * Returns the statement for the shape, or null if it hasn't been built yet.
+     */
+    synchronized String get(int filters, String[] projection, String sortOrder) {
+        String sql = mStatements.get(new Shape(filters, projection, sortOrder));
+        if (sql == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return sql;
+    }
+
+    synchronized void put(int filters, String[] projection, String sortOrder, String sql) {
+        // The caller owns the projection array and may reuse it
+        mStatements.put(new Shape(filters,
+                projection != null ? projection.clone() : null, sortOrder), sql);
+    }
+
+    synchronized void clear() {
+        mStatements.clear();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Binds typed arguments straight into the query SQLite compiled: Longs as integers and
+     * everything else as text.
+     */
+    static final class Binder implements SQLiteDatabase.CursorFactory {
+        private final Object[] mArgs;
+
+        Binder(Object[] args) {
+            mArgs = args;
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                                String editTable, SQLiteQuery query) {
+            for (int i = 0; i < mArgs.length; i++) {
+                Object arg = mArgs[i];
+                if (arg instanceof Long) {
+                    query.bindLong(i + 1, (Long) arg);
+                } else {
+                    query.bindString(i + 1, arg.toString());
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                return newCursor(masterQuery, editTable, query);
+            }
+            return newLegacyCursor(db, masterQuery, editTable, query);
+        }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        private static Cursor newCursor(SQLiteCursorDriver masterQuery, String editTable,
+                                        SQLiteQuery query) {
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }
+
+        @SuppressWarnings("deprecation")
+        private static Cursor newLegacyCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                                              String editTable, SQLiteQuery query) {
+            return new SQLiteCursor(db, masterQuery, editTable, query);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Keeps the weather database bounded on long-lived installs.
+ * <p>
+ * Each table has its own policy:
+ * <ul>
+ * <li>weather/history/location: rows and locations that don't belong to the preferred location
+ * setting are expired.</li>
+ * <li>weather: rows older than {@link #mPastDaysToKeep} days are moved to the history table,
+ * which is then rolled up into weeks and months (see {@link WeatherHistory}).</li>
+ * <li>database: if the file is still above {@link #mMaxDatabaseBytes}, the oldest history
+ * periods go first, then past weather days, which are archived like any other.  Today and the
+ * days after it are never trimmed, and trimming stops once a batch frees no pages.</li>
+ * </ul>
+ * Deletes run in small batches, each in its own transaction, so a reader never waits on one long
+ * write.  When asked to compact, freed pages are handed back to the file system with an
+ * incremental vacuum; that part is meant for the idle maintenance window, not every sync.
+ */
+class WeatherRetention {
+    private static final String LOG_TAG = WeatherRetention.class.getSimpleName();
+
+    static final int DEFAULT_PAST_DAYS_TO_KEEP = 0;
+    static final long DEFAULT_MAX_DATABASE_BYTES = 512 * 1024;
+    static final int DEFAULT_BATCH_SIZE = 200;
+    static final int DEFAULT_VACUUM_PAGES_PER_RUN = 128;
+
+    // PRAGMA auto_vacuum value for INCREMENTAL
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final int mPastDaysToKeep;
+    private final long mMaxDatabaseBytes;
+    private final int mBatchSize;
+    private final int mVacuumPagesPerRun;
+
+    WeatherRetention() {
+        this(DEFAULT_PAST_DAYS_TO_KEEP, DEFAULT_MAX_DATABASE_BYTES, DEFAULT_BATCH_SIZE,
+                DEFAULT_VACUUM_PAGES_PER_RUN);
+    }
+
+    WeatherRetention(int pastDaysToKeep, long maxDatabaseBytes, int batchSize,
+                     int vacuumPagesPerRun) {
+        mPastDaysToKeep = pastDaysToKeep;
+        mMaxDatabaseBytes = maxDatabaseBytes;
+        mBatchSize = batchSize;
+        mVacuumPagesPerRun = vacuumPagesPerRun;
+    }
+
+    /**
+     * Applies every policy to the database.
+     *
+     * @param db              A writable database, not inside a transaction
+     * @param locationSetting The preferred location setting, whose data is always kept
+     * @param compact         Whether to also reclaim free pages
+     * @return The number of weather rows, locations and pages removed, keyed by the
+     * {@link WeatherContract} RESULT_* constants.
+     */
+    Bundle run(SQLiteDatabase db, String locationSetting, boolean compact) {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        long cutoff = today - mPastDaysToKeep * DateUtils.DAY_IN_MILLIS;
+
+        // weather, history and location: everything that belongs to old preferred locations
+        String orphanedLocations = "SELECT " + LocationEntry._ID + " FROM " +
+                LocationEntry.TABLE_NAME + " WHERE " +
+                LocationEntry.COLUMN_LOCATION_SETTING + " != ?";
+        int weatherDeleted = deleteInBatches(db, WeatherEntry.TABLE_NAME,
+                WeatherEntry.COLUMN_LOC_KEY + " IN (" + orphanedLocations + ")",
+                new String[]{locationSetting}, null, false);
+        deleteInBatches(db, HistoryEntry.TABLE_NAME,
+                HistoryEntry.COLUMN_LOC_KEY + " IN (" + orphanedLocations + ")",
+                new String[]{locationSetting}, null, false);
+        int locationsDeleted = deleteInBatches(db, LocationEntry.TABLE_NAME,
+                LocationEntry.COLUMN_LOCATION_SETTING + " != ? AND NOT EXISTS (SELECT 1 FROM " +
+                        WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.TABLE_NAME + "." +
+                        WeatherEntry.COLUMN_LOC_KEY + " = " + LocationEntry.TABLE_NAME + "." +
+                        LocationEntry._ID + ")",
+                new String[]{locationSetting}, null, false);
+
+        // weather: past days move to the history table, then history is rolled up
+        int daysArchived = deleteInBatches(db, WeatherEntry.TABLE_NAME,
+                WeatherEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(cutoff)}, null, true);
+        weatherDeleted += daysArchived;
+        WeatherHistory.rollUp(db, today);
+
+        // database: the oldest, most rolled up history first, then past days, until the live
+        // pages fit under the limit.  The forecast from today on is what the app shows, so it
+        // stays whatever the size.
+        int historyDeleted = 0;
+        long usedBytes = getUsedBytes(db);
+        while (usedBytes > mMaxDatabaseBytes) {
+            int deleted = deleteInBatches(db, HistoryEntry.TABLE_NAME, null, null,
+                    HistoryEntry.COLUMN_PERIOD_START + " ASC, " +
+                            HistoryEntry.COLUMN_PERIOD + " DESC", false);
+            historyDeleted += deleted;
+            boolean archived = false;
+            if (deleted == 0) {
+                // Past days kept by mPastDaysToKeep still go through the history table, which
+                // is the record of them
+                deleted = deleteInBatches(db, WeatherEntry.TABLE_NAME,
+                        WeatherEntry.COLUMN_DATE + " < ?", new String[]{Long.toString(today)},
+                        WeatherEntry.COLUMN_DATE + " ASC", true);
+                weatherDeleted += deleted;
+                daysArchived += deleted;
+                archived = deleted > 0;
+            }
+            long usedAfter = getUsedBytes(db);
+            // Rows can go without a page coming free; then nothing more is gained by going on.
+            // Archiving only moves rows into history, which the next round trims.
+            if (deleted == 0 || (!archived && usedAfter >= usedBytes)) {
+                break;
+            }
+            usedBytes = usedAfter;
+        }
+
+        long pagesReclaimed = 0;
+        if (compact) {
+            pagesReclaimed = reclaimPages(db);
+        }
+
+        Log.d(LOG_TAG, "Retention removed " + weatherDeleted + " weather rows (" + daysArchived +
+                " archived), " + historyDeleted + " history rows, " + locationsDeleted +
+                " locations and " + pagesReclaimed + " pages");
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.RESULT_WEATHER_DELETED, weatherDeleted);
+        result.putInt(WeatherContract.RESULT_LOCATIONS_DELETED, locationsDeleted);
+        result.putLong(WeatherContract.RESULT_PAGES_RECLAIMED, pagesReclaimed);
+        result.putInt(WeatherContract.RESULT_DAYS_ARCHIVED, daysArchived);
+        result.putInt(WeatherContract.RESULT_HISTORY_DELETED, historyDeleted);
+        return result;
+    }
+
+    /**
+     * Deletes the matching rows {@link #mBatchSize} at a time.  When an order is given only one
+     * batch is removed, which is what the size policy wants.  Weather rows can be archived to the
+     * history table in the same transaction as their delete.
+     */
+    private int deleteInBatches(SQLiteDatabase db, String table, String selection,
+                                String[] selectionArgs, String orderBy, boolean archive) {
+        String batch = "_id IN (SELECT _id FROM " + table +
+                (selection != null ? " WHERE " + selection : "") +
+                (orderBy != null ? " ORDER BY " + orderBy : "") +
+                " LIMIT " + mBatchSize + ")";
+        int total = 0;
+        int deleted;
+        do {
+            db.beginTransaction();
+            try {
+                if (archive) {
+                    WeatherHistory.archive(db, batch, selectionArgs);
+                }
+                deleted = db.delete(table, batch, selectionArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            total += deleted;
+        } while (orderBy == null && deleted == mBatchSize);
+        return total;
+    }
+
+    private long reclaimPages(SQLiteDatabase db) {
+        // auto_vacuum can only be switched on for an existing file by a full VACUUM.  That is
+        // done once; from then on free pages are released a few at a time.
+        if (queryPragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            long before = queryPragma(db, "page_count");
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            return Math.max(0, before - queryPragma(db, "page_count"));
+        }
+        long before = queryPragma(db, "freelist_count");
+        if (before > 0) {
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + mVacuumPagesPerRun + ")",
+                    null);
+            // Stepping through the statement is what frees the pages
+            while (cursor.moveToNext()) {
+            }
+            cursor.close();
+        }
+        return before - queryPragma(db, "freelist_count");
+    }
+
+    private long getUsedBytes(SQLiteDatabase db) {
+        return (queryPragma(db, "page_count") - queryPragma(db, "freelist_count")) *
+                queryPragma(db, "page_size");
+    }
+
+    static long queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.ConditionEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact storage for weather rows.
+ * <p>
+ * Temperatures, humidity, pressure, wind and degrees are stored as integers in hundredths
+ * instead of REAL, and the short description is kept once per weather id in the
+ * {@link ConditionEntry} table instead of on every row.  Small integers take one to three bytes
+ * in a SQLite record where a REAL always takes eight, so more rows fit on a page.
+ * <p>
+ * The provider encodes values on the way in and rewrites query projections and selections so
+ * that callers still read, and select on, floats and a short_desc column, exactly as before.
+ */
+class WeatherRowCodec {
+
+    static final int SCALE = 100;
+
+    static final String[] FIXED_POINT_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // Every column a caller can read from the weather table, in table order
+    private static final String[] WEATHER_COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final String WEATHER_PREFIX = WeatherEntry.TABLE_NAME + ".";
+
+    /**
+     * Converts a weather row as callers write it into its stored form.  The caller's values are
+     * left untouched.  The short description, if any, is written to the condition table.
+     */
+    static ContentValues encode(SQLiteDatabase db, ContentValues callerValues) {
+        ContentValues values = new ContentValues(callerValues);
+        for (String column : FIXED_POINT_COLUMNS) {
+            if (values.containsKey(column)) {
+                Double value = values.getAsDouble(column);
+                values.put(column, value == null ? null : Math.round(value * SCALE));
+            }
+        }
+        if (values.containsKey(WeatherEntry.COLUMN_SHORT_DESC)) {
+            String description = values.getAsString(WeatherEntry.COLUMN_SHORT_DESC);
+            values.remove(WeatherEntry.COLUMN_SHORT_DESC);
+            Integer weatherId = values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID);
+            if (description != null && weatherId != null) {
+                ContentValues condition = new ContentValues(2);
+                condition.put(ConditionEntry.COLUMN_WEATHER_ID, weatherId);
+                condition.put(ConditionEntry.COLUMN_SHORT_DESC, description);
+                db.insertWithOnConflict(ConditionEntry.TABLE_NAME, null, condition,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Rewrites a projection so the encoded columns come back decoded, under their usual names.
+     *
+     * @param projection The projection asked for, or null for every column
+     * @param joined     Whether the query joins the location table, whose columns are then
+     *                   part of the default projection
+     */
+    static String[] decodeProjection(String[] projection, boolean joined) {
+        if (projection == null) {
+            List<String> columns = new ArrayList<String>(WEATHER_COLUMNS.length + 1);
+            for (String column : WEATHER_COLUMNS) {
+                columns.add(decodeColumn(WEATHER_PREFIX + column));
+            }
+            if (joined) {
+                columns.add(LocationEntry.TABLE_NAME + ".*");
+            }
+            return columns.toArray(new String[columns.size()]);
+        }
+        String[] decoded = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            decoded[i] = decodeColumn(projection[i]);
+        }
+        return decoded;
+    }
+
+    /**
+     * Rewrites a caller's selection on the weather table so it compares decoded values: each
+     * encoded column it names, bare or as weather.column, becomes the expression that decodes it.
+     * "max > 20" then means twenty degrees, and short_desc, which the table no longer has, is
+     * looked up in the condition table.  String literals and columns of other tables are left
+     * alone.
+     *
+     * @return The rewritten selection, or null for null
+     */
+    static String decodeSelection(String selection) {
+        if (selection == null) {
+            return null;
+        }
+        StringBuilder decoded = null;
+        int copied = 0;
+        int length = selection.length();
+        int i = 0;
+        while (i < length) {
+            char c = selection.charAt(i);
+            if (c == '\'') {
+                // Skip the literal, '' being an escaped quote inside it
+                i++;
+                while (i < length) {
+                    if (selection.charAt(i) == '\'') {
+                        if (i + 1 < length && selection.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                continue;
+            }
+            boolean quoted = c == '"';
+            if (!quoted && !isIdentifierStart(c)) {
+                i++;
+                continue;
+            }
+
+            // An identifier, maybe quoted, maybe qualified
+            int start = i;
+            int end;
+            String name;
+            if (quoted) {
+                end = selection.indexOf('"', i + 1);
+                if (end < 0) {
+                    break;
+                }
+                name = selection.substring(i + 1, end);
+                end++;
+            } else {
+                end = i + 1;
+                while (end < length && isIdentifierPart(selection.charAt(end))) {
+                    end++;
+                }
+                name = selection.substring(i, end);
+            }
+            i = end;
+            String qualifier = null;
+            int nameStart = start;
+            if (start > 1 && selection.charAt(start - 1) == '.' &&
+                    selection.charAt(start - 2) == '"') {
+                // A quoted qualifier, as in "weather"."max"
+                int qualifierStart = selection.lastIndexOf('"', start - 3);
+                if (qualifierStart >= 0) {
+                    qualifier = selection.substring(qualifierStart + 1, start - 2);
+                    nameStart = qualifierStart;
+                }
+            } else if (start > 0 && selection.charAt(start - 1) == '.') {
+                int qualifierStart = start - 1;
+                while (qualifierStart > 0 &&
+                        isIdentifierPart(selection.charAt(qualifierStart - 1))) {
+                    qualifierStart--;
+                }
+                qualifier = selection.substring(qualifierStart, start - 1);
+                nameStart = qualifierStart;
+            }
+            if (qualifier != null && !WeatherEntry.TABLE_NAME.equalsIgnoreCase(qualifier)) {
+                continue;
+            }
+            // MIN(...) and MAX(...) are the aggregates, not the columns
+            int next = end;
+            while (next < length && Character.isWhitespace(selection.charAt(next))) {
+                next++;
+            }
+            if (!quoted && next < length && selection.charAt(next) == '(') {
+                continue;
+            }
+            String expression = decodeExpression(name);
+            if (expression == null) {
+                continue;
+            }
+            if (decoded == null) {
+                decoded = new StringBuilder(length + 64);
+            }
+            decoded.append(selection, copied, nameStart).append(expression);
+            copied = end;
+        }
+        if (decoded == null) {
+            return selection;
+        }
+        return decoded.append(selection, copied, length).toString();
+    }
+
+    /**
+     * @return The expression that reads an encoded column decoded, or null if it isn't encoded
+     */
+    private static String decodeExpression(String name) {
+        if (WeatherEntry.COLUMN_SHORT_DESC.equalsIgnoreCase(name)) {
+            return "(SELECT " + ConditionEntry.COLUMN_SHORT_DESC + " FROM " +
+                    ConditionEntry.TABLE_NAME + " WHERE " + ConditionEntry.TABLE_NAME + "." +
+                    ConditionEntry.COLUMN_WEATHER_ID + " = " + WEATHER_PREFIX +
+                    WeatherEntry.COLUMN_WEATHER_ID + ")";
+        }
+        for (String fixedPoint : FIXED_POINT_COLUMNS) {
+            if (fixedPoint.equalsIgnoreCase(name)) {
+                return "(" + WEATHER_PREFIX + fixedPoint + " / " + SCALE + ".0)";
+            }
+        }
+        return null;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static String decodeColumn(String column) {
+        String name = column.startsWith(WEATHER_PREFIX) ?
+                column.substring(WEATHER_PREFIX.length()) : column;
+        String expression = decodeExpression(name);
+        if (expression != null) {
+            return expression + " AS " + name;
+        }
+        // Weather columns that aren't encoded are qualified, so they stay unambiguous in a join
+        for (String weatherColumn : WEATHER_COLUMNS) {
+            if (weatherColumn.equals(name) && !WeatherEntry._ID.equals(name)) {
+                return WEATHER_PREFIX + name + " AS " + name;
+            }
+        }
+        return column;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * The staging side of a forecast refresh.
+ * <p>
+ * A sync bulk inserts its rows into {@link #TABLE_NAME}, a table shaped like the weather table
+ * that no query reads, in short batches so readers get the database between them.  It then
+ * publishes them with {@link #publish}: one transaction that replaces, for each staged location,
+ * its rows from the first staged date on with the staged ones.  Readers see either the old
+ * forecast or the new one, and only wait for that swap.  Past days are left for retention.
+ */
+class WeatherStaging {
+
+    static final String TABLE_NAME = "weather_staging";
+
+    // Rows per staging transaction
+    static final int BATCH_SIZE = 50;
+
+    private static final String COLUMNS =
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherEntry.COLUMN_DEGREES;
+
+    //DELETE FROM weather WHERE location_id IN (SELECT location_id FROM weather_staging) AND
+    //date >= (SELECT MIN(date) FROM weather_staging
+    //         WHERE weather_staging.location_id = weather.location_id)
+    private static final String DELETE_REPLACED_SQL = "DELETE FROM " + WeatherEntry.TABLE_NAME +
+            " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " +
+            WeatherEntry.COLUMN_LOC_KEY + " FROM " + TABLE_NAME + ") AND " +
+            WeatherEntry.COLUMN_DATE + " >= (SELECT MIN(" + WeatherEntry.COLUMN_DATE + ") FROM " +
+            TABLE_NAME + " WHERE " + TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + ")";
+
+    private static final String PUBLISH_SQL = "INSERT INTO " + WeatherEntry.TABLE_NAME +
+            " (" + COLUMNS + ") SELECT " + COLUMNS + " FROM " + TABLE_NAME;
+
+    /**
+     * Moves every staged row into the weather table in one transaction.
+     *
+     * @return The number of rows published
+     */
+    static int publish(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL(DELETE_REPLACED_SQL);
+            db.execSQL(PUBLISH_SQL);
+            // Every staged row was published, so clearing the table counts them
+            int published = db.delete(TABLE_NAME, "1", null);
+            db.setTransactionSuccessful();
+            return published;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
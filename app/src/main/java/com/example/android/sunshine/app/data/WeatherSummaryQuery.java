@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SummaryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Builds the single aggregate row behind weather/[location]/summary.
+ * <p>
+ * Everything is computed by SQLite over a date range of one location.  The range filter is a
+ * date range plus a location id, which the unique (location_id, date) index of the weather table
+ * answers without reading other locations or days.  The "which day" columns are ordered
+ * subqueries over the same range, since bare columns next to MAX() aren't reliable on older
+ * SQLite versions.
+ */
+class WeatherSummaryQuery {
+
+    //location_id = (SELECT _id FROM location WHERE location_setting = ?) AND date >= ? AND date <= ?
+    private static final String RANGE_SELECTION =
+            WeatherEntry.COLUMN_LOC_KEY + " = (SELECT " + LocationEntry._ID + " FROM " +
+                    LocationEntry.TABLE_NAME + " WHERE " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?) AND " +
+                    WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherEntry.COLUMN_DATE + " <= ?";
+
+    // storm, drizzle and rain, except freezing rain which is shown as snow
+    private static final String RAINY_CONDITION =
+            "(" + WeatherEntry.COLUMN_WEATHER_ID + " BETWEEN 200 AND 599 AND " +
+                    WeatherEntry.COLUMN_WEATHER_ID + " NOT BETWEEN 400 AND 499 AND " +
+                    WeatherEntry.COLUMN_WEATHER_ID + " != 511)";
+
+    // Number of times RANGE_SELECTION appears in SUMMARY_SQL
+    private static final int RANGE_COUNT = 5;
+
+    private static final String SUMMARY_SQL = "SELECT " +
+            "COUNT(*) AS " + SummaryEntry.COLUMN_DAY_COUNT + ", " +
+            decoded("MIN", WeatherEntry.COLUMN_MIN_TEMP, SummaryEntry.COLUMN_MIN_TEMP) +
+            decoded("MAX", WeatherEntry.COLUMN_MAX_TEMP, SummaryEntry.COLUMN_MAX_TEMP) +
+            decoded("AVG", WeatherEntry.COLUMN_MIN_TEMP, SummaryEntry.COLUMN_AVG_MIN_TEMP) +
+            decoded("AVG", WeatherEntry.COLUMN_MAX_TEMP, SummaryEntry.COLUMN_AVG_MAX_TEMP) +
+            decoded("AVG", WeatherEntry.COLUMN_HUMIDITY, SummaryEntry.COLUMN_AVG_HUMIDITY) +
+            decoded("AVG", WeatherEntry.COLUMN_WIND_SPEED, SummaryEntry.COLUMN_AVG_WIND_SPEED) +
+            dayOf(null, WeatherEntry.COLUMN_MAX_TEMP + " DESC", SummaryEntry.COLUMN_WARMEST_DATE) +
+            dayOf(null, WeatherEntry.COLUMN_MIN_TEMP + " ASC", SummaryEntry.COLUMN_COLDEST_DATE) +
+            dayOf(null, WeatherEntry.COLUMN_WIND_SPEED + " DESC",
+                    SummaryEntry.COLUMN_WINDIEST_DATE) +
+            dayOf(RAINY_CONDITION, WeatherEntry.COLUMN_HUMIDITY + " DESC",
+                    SummaryEntry.COLUMN_RAINIEST_DATE) +
+            countOf("BETWEEN 200 AND 299", SummaryEntry.COLUMN_STORM_DAYS) +
+            countOf("BETWEEN 300 AND 399", SummaryEntry.COLUMN_DRIZZLE_DAYS) +
+            countOf("BETWEEN 500 AND 599 AND " + WeatherEntry.COLUMN_WEATHER_ID + " != 511",
+                    SummaryEntry.COLUMN_RAIN_DAYS) +
+            countOf("BETWEEN 600 AND 699 OR " + WeatherEntry.COLUMN_WEATHER_ID + " = 511",
+                    SummaryEntry.COLUMN_SNOW_DAYS) +
+            countOf("BETWEEN 700 AND 799", SummaryEntry.COLUMN_ATMOSPHERE_DAYS) +
+            countOf("= 800", SummaryEntry.COLUMN_CLEAR_DAYS) +
+            "IFNULL(SUM(" + WeatherEntry.COLUMN_WEATHER_ID + " BETWEEN 801 AND 899), 0) AS " +
+            SummaryEntry.COLUMN_CLOUDY_DAYS +
+            " FROM " + WeatherEntry.TABLE_NAME + " WHERE " + RANGE_SELECTION;
+
+    private static String decoded(String aggregate, String column, String alias) {
+        return aggregate + "(" + column + ") / " + WeatherRowCodec.SCALE + ".0 AS " + alias + ", ";
+    }
+
+    private static String dayOf(String condition, String orderBy, String alias) {
+        return "(SELECT " + WeatherEntry.COLUMN_DATE + " FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + RANGE_SELECTION + (condition != null ? " AND " + condition : "") +
+                " ORDER BY " + orderBy + ", " + WeatherEntry.COLUMN_DATE + " ASC LIMIT 1) AS " +
+                alias + ", ";
+    }
+
+    private static String countOf(String condition, String alias) {
+        return "IFNULL(SUM(" + WeatherEntry.COLUMN_WEATHER_ID + " " + condition + "), 0) AS " +
+                alias + ", ";
+    }
+
+    static WeatherProvider.ReadQuery build(String locationSetting, long startDate, long endDate) {
+        String[] selectionArgs = new String[RANGE_COUNT * 3];
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            selectionArgs[i * 3] = locationSetting;
+            selectionArgs[i * 3 + 1] = Long.toString(startDate);
+            selectionArgs[i * 3 + 2] = Long.toString(endDate);
+        }
+        return new WeatherProvider.ReadQuery(SUMMARY_SQL, selectionArgs);
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.TransferEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams whole tables out of and into the database for {@link WeatherProvider#openFile}.
+ * <p>
+ * An export reads one cursor window at a time and writes each row as it goes; an import reads a
+ * line at a time and inserts through the same encoding as bulkInsert, committing every
+ * {@link #IMPORT_BATCH_SIZE} rows.  Neither holds more than a window or a batch in memory, however
+ * large the table.
+ * <p>
+ * Rows carry their location setting instead of the location row id, and measures are written
+ * decoded, exactly as a query returns them.
+ */
+class WeatherTransfer {
+
+    static final int IMPORT_BATCH_SIZE = 500;
+
+    private static final int TYPE_TEXT = 0;
+    private static final int TYPE_INTEGER = 1;
+    private static final int TYPE_REAL = 2;
+
+    /*
+        What one transferable table looks like from outside: its columns, what kind of value
+        each holds, and the query that reads them out.
+     */
+    private static final class Table {
+        final String[] mColumns;
+        final int[] mTypes;
+        final String mExportSql;
+
+        Table(String[] columns, int[] types, String exportSql) {
+            mColumns = columns;
+            mTypes = types;
+            mExportSql = exportSql;
+        }
+
+        // Only the columns an export writes are written back, so nothing else reaches SQL
+        void checkColumn(String name) throws IOException {
+            for (String column : mColumns) {
+                if (column.equals(name)) {
+                    return;
+                }
+            }
+            throw new IOException("Unknown column " + name);
+        }
+    }
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String[] WEATHER_COLUMNS = {
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final String[] HISTORY_COLUMNS = {
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            HistoryEntry.COLUMN_PERIOD,
+            HistoryEntry.COLUMN_PERIOD_START,
+            HistoryEntry.COLUMN_DAY_COUNT,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_MEAN_TEMP,
+            HistoryEntry.COLUMN_WEATHER_ID
+    };
+
+    //weather INNER JOIN location ON weather.location_id = location._id
+    private static final String WEATHER_WITH_LOCATION_TABLES = WeatherEntry.TABLE_NAME +
+            " INNER JOIN " + LocationEntry.TABLE_NAME + " ON " + WeatherEntry.TABLE_NAME + "." +
+            WeatherEntry.COLUMN_LOC_KEY + " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID;
+
+    //history INNER JOIN location ON history.location_id = location._id
+    private static final String HISTORY_WITH_LOCATION_TABLES = HistoryEntry.TABLE_NAME +
+            " INNER JOIN " + LocationEntry.TABLE_NAME + " ON " + HistoryEntry.TABLE_NAME + "." +
+            HistoryEntry.COLUMN_LOC_KEY + " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID;
+
+    private static final Map<String, Table> TABLES = new HashMap<String, Table>();
+
+    static {
+        TABLES.put(LocationEntry.TABLE_NAME, new Table(LOCATION_COLUMNS,
+                new int[]{TYPE_TEXT, TYPE_TEXT, TYPE_REAL, TYPE_REAL},
+                SQLiteQueryBuilder.buildQueryString(false, LocationEntry.TABLE_NAME,
+                        LOCATION_COLUMNS, null, null, null, LocationEntry._ID, null)));
+        TABLES.put(WeatherEntry.TABLE_NAME, new Table(WEATHER_COLUMNS,
+                new int[]{TYPE_TEXT, TYPE_INTEGER, TYPE_INTEGER, TYPE_TEXT, TYPE_REAL, TYPE_REAL,
+                        TYPE_REAL, TYPE_REAL, TYPE_REAL, TYPE_REAL},
+                SQLiteQueryBuilder.buildQueryString(false, WEATHER_WITH_LOCATION_TABLES,
+                        WeatherRowCodec.decodeProjection(WEATHER_COLUMNS, true), null, null, null,
+                        WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                                WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_DATE, null)));
+        TABLES.put(HistoryEntry.TABLE_NAME, new Table(HISTORY_COLUMNS,
+                new int[]{TYPE_TEXT, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_REAL, TYPE_REAL,
+                        TYPE_REAL, TYPE_INTEGER},
+                SQLiteQueryBuilder.buildQueryString(false, HISTORY_WITH_LOCATION_TABLES,
+                        WeatherHistory.decodeProjection(HISTORY_COLUMNS), null, null, null,
+                        HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_LOC_KEY + ", " +
+                                HistoryEntry.COLUMN_PERIOD_START + ", " +
+                                HistoryEntry.COLUMN_PERIOD, null)));
+    }
+
+    static boolean isTransferable(String tableName) {
+        return TABLES.containsKey(tableName);
+    }
+
+    static String getType(String format) {
+        return TransferEntry.FORMAT_LDJSON.equals(format) ?
+                TransferEntry.LDJSON_TYPE : TransferEntry.CSV_TYPE;
+    }
+
+    /**
+     * Writes every row of the table to the stream, then closes it.
+     *
+     * @return The number of rows written
+     */
+    static int export(SQLiteDatabase db, String tableName, String format, OutputStream out)
+            throws IOException {
+        Table table = TABLES.get(tableName);
+        boolean json = TransferEntry.FORMAT_LDJSON.equals(format);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        Cursor cursor = db.rawQuery(table.mExportSql, null);
+        int rows = 0;
+        try {
+            // One line buffer for the whole export
+            StringBuilder line = new StringBuilder();
+            if (!json) {
+                for (int i = 0; i < table.mColumns.length; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(table.mColumns[i]);
+                }
+                writer.append(line).append('\n');
+            }
+            while (cursor.moveToNext()) {
+                line.setLength(0);
+                if (json) {
+                    appendJson(line, cursor, table);
+                } else {
+                    appendCsv(line, cursor, table);
+                }
+                writer.append(line).append('\n');
+                rows++;
+            }
+        } finally {
+            cursor.close();
+            writer.close();
+        }
+        return rows;
+    }
+
+    private static void appendCsv(StringBuilder line, Cursor cursor, Table table) {
+        for (int i = 0; i < table.mColumns.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            if (cursor.isNull(i)) {
+                continue;
+            }
+            switch (table.mTypes[i]) {
+                case TYPE_INTEGER:
+                    line.append(cursor.getLong(i));
+                    break;
+                case TYPE_REAL:
+                    line.append(cursor.getDouble(i));
+                    break;
+                default:
+                    appendCsvText(line, cursor.getString(i));
+            }
+        }
+    }
+
+    // Quotes a field only when it has to be, doubling the quotes inside it
+    private static void appendCsvText(StringBuilder line, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private static void appendJson(StringBuilder line, Cursor cursor, Table table) {
+        line.append('{');
+        for (int i = 0; i < table.mColumns.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(JSONObject.quote(table.mColumns[i])).append(':');
+            if (cursor.isNull(i)) {
+                line.append("null");
+                continue;
+            }
+            switch (table.mTypes[i]) {
+                case TYPE_INTEGER:
+                    line.append(cursor.getLong(i));
+                    break;
+                case TYPE_REAL:
+                    line.append(cursor.getDouble(i));
+                    break;
+                default:
+                    line.append(JSONObject.quote(cursor.getString(i)));
+            }
+        }
+        line.append('}');
+    }
+
+    /**
+     * Reads rows from the stream into the table, committing every {@link #IMPORT_BATCH_SIZE}
+     * rows, then closes it.  Rows whose location isn't in the database are skipped.  If the
+     * input is malformed or names a column the export doesn't write, the import stops there;
+     * the batches already committed stay.
+     *
+     * @return The number of rows imported
+     */
+    static int importRows(SQLiteDatabase db, String tableName, String format, InputStream in)
+            throws IOException {
+        Table table = TABLES.get(tableName);
+        boolean json = TransferEntry.FORMAT_LDJSON.equals(format);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        // Location settings seen so far, so each is looked up once
+        Map<String, Long> locationIds = new HashMap<String, Long>();
+        int imported = 0;
+        int batched = 0;
+        try {
+            String[] header = null;
+            if (!json) {
+                String headerLine = reader.readLine();
+                if (headerLine == null) {
+                    return 0;
+                }
+                List<String> names = parseCsvLine(headerLine, reader);
+                header = names.toArray(new String[names.size()]);
+                for (String name : header) {
+                    if (name == null) {
+                        throw new IOException("Empty column name in the header");
+                    }
+                    table.checkColumn(name);
+                }
+            }
+
+            db.beginTransaction();
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    ContentValues values = json ? parseJsonLine(line, table) : toValues(header,
+                            parseCsvLine(line, reader));
+                    if (insert(db, tableName, values, locationIds)) {
+                        imported++;
+                    }
+                    if (++batched == IMPORT_BATCH_SIZE) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        db.beginTransaction();
+                        batched = 0;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            reader.close();
+        }
+        return imported;
+    }
+
+    private static ContentValues toValues(String[] header, List<String> fields)
+            throws IOException {
+        if (fields.size() != header.length) {
+            throw new IOException("Expected " + header.length + " fields, got " + fields.size());
+        }
+        ContentValues values = new ContentValues(header.length);
+        for (int i = 0; i < header.length; i++) {
+            String field = fields.get(i);
+            if (field != null) {
+                values.put(header[i], field);
+            }
+        }
+        return values;
+    }
+
+    /*
+        Splits one CSV record.  A quoted field may run over several lines, which are then read
+        from the reader.  An empty unquoted field is null.
+     */
+    private static List<String> parseCsvLine(String line, BufferedReader reader)
+            throws IOException {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted) {
+                    break;
+                }
+                line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("Unterminated quoted field");
+                }
+                field.append('\n');
+                i = 0;
+                continue;
+            }
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i < line.length() && line.charAt(i) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+                field.setLength(0);
+                wasQuoted = false;
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+        return fields;
+    }
+
+    private static ContentValues parseJsonLine(String line, Table table) throws IOException {
+        try {
+            JSONObject object = new JSONObject(line);
+            ContentValues values = new ContentValues(object.length());
+            for (Iterator<String> keys = object.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                table.checkColumn(key);
+                if (!object.isNull(key)) {
+                    values.put(key, object.getString(key));
+                }
+            }
+            return values;
+        } catch (JSONException e) {
+            throw new IOException("Malformed line: " + e.getMessage());
+        }
+    }
+
+    /*
+        Writes one imported row: a location is updated in place when its setting exists, so
+        the rows pointing at it stay attached; weather is encoded the way bulkInsert encodes it,
+        and history like WeatherHistory stores it.
+     */
+    private static boolean insert(SQLiteDatabase db, String tableName, ContentValues values,
+                                  Map<String, Long> locationIds) {
+        String locationSetting = values.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            return false;
+        }
+        if (LocationEntry.TABLE_NAME.equals(tableName)) {
+            locationIds.remove(locationSetting);
+            int updated = db.update(LocationEntry.TABLE_NAME, values,
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{locationSetting});
+            return updated > 0 || db.insert(LocationEntry.TABLE_NAME, null, values) != -1;
+        }
+
+        Long locationId = locationIds.get(locationSetting);
+        if (locationId == null) {
+            locationId = findLocationId(db, locationSetting);
+            locationIds.put(locationSetting, locationId);
+        }
+        if (locationId < 0) {
+            return false;
+        }
+        values.remove(LocationEntry.COLUMN_LOCATION_SETTING);
+        if (WeatherEntry.TABLE_NAME.equals(tableName)) {
+            values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            return db.insert(WeatherEntry.TABLE_NAME, null, WeatherRowCodec.encode(db, values)) != -1;
+        }
+        values.put(HistoryEntry.COLUMN_LOC_KEY, locationId);
+        for (String column : new String[]{HistoryEntry.COLUMN_MIN_TEMP,
+                HistoryEntry.COLUMN_MAX_TEMP, HistoryEntry.COLUMN_MEAN_TEMP}) {
+            Double value = values.getAsDouble(column);
+            if (value != null) {
+                values.put(column, Math.round(value * WeatherRowCodec.SCALE));
+            }
+        }
+        return db.insert(HistoryEntry.TABLE_NAME, null, values) != -1;
+    }
+
+    // The row id of the location, or -1 when it doesn't exist
+    private static long findLocationId(SQLiteDatabase db, String locationSetting) {
+        try {
+            return DatabaseUtils.longForQuery(db, "SELECT " + LocationEntry._ID + " FROM " +
+                            LocationEntry.TABLE_NAME + " WHERE " +
+                            LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{locationSetting});
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+}
@@ -34,6 +34,8 @@ import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.CityIndex;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
@@ -64,19 +66,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[]{
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID, LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {
@@ -97,6 +86,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         Log.d(LOG_TAG, "Starting sync");
         String locationQuery = Utility.getPreferredLocation(getContext());
 
+        // A city the index knows is asked for by id, so the server can't pick a different one.
+        // When the index lists every city, a name missing from it is invalid without asking.
+        CityIndex.City city = null;
+        CityIndex cityIndex = CityIndex.getInstance(getContext());
+        if (cityIndex != null && !CityIndex.isPostalCode(locationQuery)) {
+            city = cityIndex.resolve(locationQuery);
+            if (city == null && cityIndex.isComplete()) {
+                Log.d(LOG_TAG, "Location not in the city index: " + locationQuery);
+                setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
+                return;
+            }
+        }
+
         // These two need to be declared outside the try/catch
         // so that they can be closed in the finally block.
         HttpURLConnection urlConnection = null;
@@ -116,13 +118,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             final String FORECAST_BASE_URL =
                     "http://api.openweathermap.org/data/2.5/forecast/daily?";
             final String QUERY_PARAM = "q";
+            final String ID_PARAM = "id";
             final String FORMAT_PARAM = "mode";
             final String UNITS_PARAM = "units";
             final String DAYS_PARAM = "cnt";
             final String APPID_PARAM = "APPID";
 
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
+            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
+            if (city != null) {
+                uriBuilder.appendQueryParameter(ID_PARAM, Integer.toString(city.getId()));
+            } else {
+                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+            }
+            Uri builtUri = uriBuilder
                     .appendQueryParameter(FORMAT_PARAM, format)
                     .appendQueryParameter(UNITS_PARAM, units)
                     .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
@@ -194,6 +202,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private void getWeatherDataFromJson(String forecastJsonStr,
                                         String locationSetting)
             throws JSONException {
+        // When this forecast arrived, so the watch can tell how long it took to reach it
+        long parsedAt = System.currentTimeMillis();
 
         // Now we have a String representing the complete forecast in JSON Format.
         // Fortunately parsing is easy:  constructor takes the JSON string and converts it
@@ -338,16 +348,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             if (cVVector.size() > 0) {
                 ContentValues[] cvArray = new ContentValues[cVVector.size()];
                 cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+                publishForecast(cvArray);
 
                 // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[]{Long.toString(dayTime.setJulianDay(julianStartDay - 1))});
+                runRetention(locationSetting, dayTime.setJulianDay(julianStartDay - 1));
 
+                writeSnapshot(locationSetting);
                 updateWidgets();
                 updateMuzei();
-                updateWearable();
+                updateWearable(parsedAt);
                 notifyWeather();
             }
             Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
@@ -360,6 +369,70 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
+    /**
+     * Replaces the stored forecast with the one just downloaded.  Where the provider can be
+     * called, the rows are staged and then published in one short transaction, so readers never
+     * see half a refresh and only wait for the swap.
+     */
+    private void publishForecast(ContentValues[] values) {
+        ContentResolver resolver = getContext().getContentResolver();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // ContentResolver.call is not available, so write the rows in place
+            resolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+            return;
+        }
+        // Drop whatever an interrupted sync left staged
+        resolver.delete(WeatherContract.WeatherEntry.STAGING_URI, null, null);
+        resolver.bulkInsert(WeatherContract.WeatherEntry.STAGING_URI, values);
+        resolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_PUBLISH_STAGING, null, null);
+    }
+
+    /**
+     * Writes the next days of the new forecast to the snapshot file the widgets, Muzei, the
+     * notification and the wearable read today's weather from.
+     */
+    private void writeSnapshot(String locationSetting) {
+        try {
+            ForecastSnapshot.write(getContext(), locationSetting);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing the forecast snapshot", e);
+        }
+    }
+
+    /**
+     * Applies the database retention policies after a sync.  Reclaiming free pages is more
+     * expensive, so that only happens once a day, in the background window the sync runs in.
+     *
+     * @param locationSetting The location whose data was just synced and must be kept
+     * @param yesterday       Normalized date of yesterday, used when the provider can't be called
+     */
+    private void runRetention(String locationSetting, long yesterday) {
+        Context context = getContext();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // ContentResolver.call is not available, so just drop the past days
+            context.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                    new String[]{Long.toString(yesterday)});
+            return;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String lastCompactionKey = context.getString(R.string.pref_last_compaction);
+        boolean compact = System.currentTimeMillis() - prefs.getLong(lastCompactionKey, 0)
+                >= DAY_IN_MILLIS;
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(WeatherContract.EXTRA_COMPACT, compact);
+        context.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_RUN_RETENTION, locationSetting, extras);
+
+        if (compact) {
+            SharedPreferences.Editor editor = prefs.edit();
+            editor.putLong(lastCompactionKey, System.currentTimeMillis());
+            editor.commit();
+        }
+    }
+
     private void updateWidgets() {
         Context context = getContext();
         // Setting the package ensures that only components in our app will receive the broadcast
@@ -378,9 +451,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void updateWearable() {
+    private void updateWearable(long parsedAt) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            WearableUpdaterService.updateWatchFace(getContext());
+            WearableUpdaterService.updateWatchFace(getContext(), parsedAt);
         }
     }
 
@@ -401,16 +474,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
                 String locationQuery = Utility.getPreferredLocation(context);
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                // today's values come straight from the provider's in-memory copy
+                Bundle today = Utility.getTodayForecast(context, locationQuery);
 
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != null) {
+                    int weatherId = today.getInt(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+                    double high = today.getDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+                    double low = today.getDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+                    String desc = today.getString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -486,7 +557,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
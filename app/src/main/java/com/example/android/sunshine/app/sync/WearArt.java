@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Today's weather art, rendered on the phone at exactly the size the watch face draws it, so the
+ * watch only decodes a small PNG instead of decoding and scaling a full size drawable.
+ * <p>
+ * The watch publishes the size and bitmap config it wants in the {@link #SPEC_PATH} data item.
+ * The art is sent as an Asset in the "/forecast" item, with the SHA-1 of its bytes, under which
+ * the watch caches it.
+ * <p>
+ * Only the interactive art is rendered here.  The spec has no ambient mode: in ambient the watch
+ * draws this same art through a desaturating filter, which costs less than sending a second
+ * image for every condition.
+ */
+final class WearArt {
+    private static final String LOG_TAG = WearArt.class.getSimpleName();
+
+    // The data item the watch describes the art it wants in, and its keys
+    static final String SPEC_PATH = "/art_spec";
+    static final String KEY_WIDTH = "width";
+    static final String KEY_HEIGHT = "height";
+    // A Bitmap.Config name, nothing more; see the class doc on ambient mode
+    static final String KEY_CONFIG = "config";
+
+    // The "/forecast" keys the art is sent under
+    static final String KEY_ART = "art";
+    static final String KEY_ART_HASH = "art_hash";
+    static final String KEY_ART_WEATHER_ID = "art_weather_id";
+
+    final int weatherId;
+    final byte[] png;
+    final String hash;
+
+    private WearArt(int weatherId, byte[] png, String hash) {
+        this.weatherId = weatherId;
+        this.png = png;
+        this.hash = hash;
+    }
+
+    /**
+     * Renders the art for a weather condition as the watch's spec asks.
+     *
+     * @return The art, or null if the spec is unusable or there is no art for the condition
+     */
+    static WearArt render(Context context, int weatherId, DataMap spec) {
+        int width = spec.getInt(KEY_WIDTH);
+        int height = spec.getInt(KEY_HEIGHT);
+        int resource = Utility.getArtResourceForWeatherCondition(weatherId);
+        if (width <= 0 || height <= 0 || resource == -1) {
+            return null;
+        }
+        Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        String configName = spec.getString(KEY_CONFIG);
+        if (configName != null) {
+            try {
+                config = Bitmap.Config.valueOf(configName);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOG_TAG, "Unknown bitmap config " + configName + ", using " + config);
+            }
+        }
+
+        // Sample down while decoding as far as the target size allows, then scale the rest
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(context.getResources(), resource, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width &&
+                options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap source = BitmapFactory.decodeResource(context.getResources(), resource, options);
+        if (source == null) {
+            return null;
+        }
+
+        Bitmap art = Bitmap.createBitmap(width, height, config);
+        new Canvas(art).drawBitmap(source, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        source.recycle();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        art.compress(Bitmap.CompressFormat.PNG, 100, png);
+        art.recycle();
+
+        byte[] bytes = png.toByteArray();
+        return new WearArt(weatherId, bytes, sha1Hex(bytes));
+    }
+
+    /**
+     * @return What in the spec changes the art, to fingerprint; empty with no spec
+     */
+    static String getSpecKey(DataMap spec) {
+        if (spec == null) {
+            return "";
+        }
+        return spec.getInt(KEY_WIDTH) + "x" + spec.getInt(KEY_HEIGHT) + " " +
+                spec.getString(KEY_CONFIG);
+    }
+
+    static String sha1Hex(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.text.format.Time;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Packs the next few days of forecast into the byte array the watch face reads from the
+ * "/forecast" data item, in place of a DataMap per day.  The watch's ForecastPayload reads it
+ * back; the two must agree on this layout.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * 0  byte   version
+ * 1  byte   day count
+ * 2  byte   record size
+ * 3  int    Julian day of the first day
+ * 7  records, one per day:
+ *    byte   days after the previous day, 0 for the first
+ *    short  weather id
+ *    short  high, in tenths of a degree
+ *    short  low, in tenths of a degree
+ * </pre>
+ * A reader skips record bytes past the fields it knows, so later versions can add fields at the
+ * end of a record and older watches still read the rest.
+ */
+final class WearForecastPayload {
+
+    // The DataMap key the payload is sent under
+    static final String KEY = "days";
+
+    // A week is more than the face ever shows
+    static final int MAX_DAYS = 7;
+
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 7;
+    static final int RECORD_SIZE = 7;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(HEADER_SIZE + MAX_DAYS * RECORD_SIZE);
+    private final Time mTime = new Time();
+    private int mCount;
+    private int mLastJulianDay;
+
+    WearForecastPayload() {
+        mBuffer.put(0, (byte) VERSION);
+        mBuffer.put(2, (byte) RECORD_SIZE);
+        mBuffer.position(HEADER_SIZE);
+    }
+
+    /**
+     * Appends a day, which must come after the last one added.
+     *
+     * @param date The day's normalized date, as stored by the provider
+     * @return False once the payload is full
+     */
+    boolean addDay(long date, int weatherId, float high, float low) {
+        if (mCount == MAX_DAYS) {
+            return false;
+        }
+        mTime.set(date);
+        int julianDay = Time.getJulianDay(date, mTime.gmtoff);
+        if (mCount == 0) {
+            mBuffer.putInt(3, julianDay);
+            mBuffer.put((byte) 0);
+        } else {
+            int gap = julianDay - mLastJulianDay;
+            if (gap <= 0 || gap > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Days must be added in order, " + gap +
+                        " days apart at most " + Byte.MAX_VALUE);
+            }
+            mBuffer.put((byte) gap);
+        }
+        mBuffer.putShort((short) weatherId);
+        mBuffer.putShort(quantize(high));
+        mBuffer.putShort(quantize(low));
+        mLastJulianDay = julianDay;
+        mCount++;
+        return true;
+    }
+
+    private static short quantize(float temperature) {
+        long tenths = Math.round(temperature * 10.0);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, tenths));
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    byte[] toByteArray() {
+        mBuffer.put(1, (byte) mCount);
+        return Arrays.copyOf(mBuffer.array(), HEADER_SIZE + mCount * RECORD_SIZE);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One process-wide connection to the Wearable API, shared by everything on the phone that
+ * talks to the watch.
+ * <p>
+ * Callers {@link #acquire} it and {@link #release} it when they are done.  The client connects
+ * on first use and stays connected for {@link #IDLE_DISCONNECT_MILLIS} after the last release, so
+ * the updates a sync sends in quick succession share one handshake.  {@link #connect} and
+ * {@link #putDataItem} block with a timeout, so call them off the main thread; every put is
+ * logged with its outcome, size and latency, and counted, so a dropped update is visible
+ * instead of lost in an unheard callback.
+ */
+public final class WearableConnection {
+    private static final String LOG_TAG = WearableConnection.class.getSimpleName();
+
+    static final long CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    static final long PUT_TIMEOUT_MILLIS = 15 * 1000;
+    static final long IDLE_DISCONNECT_MILLIS = 60 * 1000;
+
+    private static WearableConnection sInstance;
+
+    private final GoogleApiClient mClient;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WearableConnection.this) {
+                if (mReferences == 0 && mClient.isConnected()) {
+                    // The services that put are gone by now, so this is the last word on them
+                    Log.i(LOG_TAG, "Idle, disconnecting from the Wearable API after " +
+                            mPutCount + " puts, " + mFailedPutCount + " failed, " + mPutBytes +
+                            " bytes delivered");
+                    mClient.disconnect();
+                }
+            }
+        }
+    };
+
+    private int mReferences;
+    private long mPutCount;
+    private long mFailedPutCount;
+    private long mLastPutMillis;
+    private long mPutBytes;
+    private int mLastPutBytes;
+    private int mMaxPutBytes;
+
+    private WearableConnection(Context context) {
+        mClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+    }
+
+    /**
+     * Takes a reference to the shared connection.  Every acquire needs a matching
+     * {@link #release}.
+     */
+    public static WearableConnection acquire(Context context) {
+        WearableConnection connection;
+        synchronized (WearableConnection.class) {
+            if (sInstance == null) {
+                sInstance = new WearableConnection(context.getApplicationContext());
+            }
+            connection = sInstance;
+        }
+        synchronized (connection) {
+            connection.mReferences++;
+            connection.mHandler.removeCallbacks(connection.mDisconnect);
+        }
+        return connection;
+    }
+
+    /**
+     * Gives back a reference.  The last one out disconnects once the connection has been idle a
+     * while.
+     */
+    public synchronized void release() {
+        if (mReferences == 0) {
+            throw new IllegalStateException("WearableConnection released more often than acquired");
+        }
+        if (--mReferences == 0) {
+            mHandler.postDelayed(mDisconnect, IDLE_DISCONNECT_MILLIS);
+        }
+    }
+
+    /**
+     * Connects if not connected yet, waiting at most {@link #CONNECT_TIMEOUT_MILLIS}.
+     *
+     * @return Whether the client is connected
+     */
+    public boolean connect() {
+        if (mClient.isConnected()) {
+            return true;
+        }
+        long start = SystemClock.elapsedRealtime();
+        ConnectionResult result = mClient.blockingConnect(CONNECT_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS);
+        if (!result.isSuccess()) {
+            Log.w(LOG_TAG, "Could not connect to the Wearable API: " + result);
+            return false;
+        }
+        Log.d(LOG_TAG, "Connected to the Wearable API in " +
+                (SystemClock.elapsedRealtime() - start) + "ms");
+        return true;
+    }
+
+    /**
+     * Puts a data item and waits until the data layer has taken it, at most
+     * {@link #PUT_TIMEOUT_MILLIS}.
+     *
+     * @return Whether the item was stored
+     */
+    public boolean putDataItem(PutDataRequest request) {
+        int bytes = getSize(request);
+        long start = SystemClock.elapsedRealtime();
+        Status status;
+        if (connect()) {
+            status = Wearable.DataApi.putDataItem(mClient, request)
+                    .await(PUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).getStatus();
+        } else {
+            status = null;
+        }
+        long millis = SystemClock.elapsedRealtime() - start;
+        boolean success = status != null && status.isSuccess();
+
+        synchronized (this) {
+            mPutCount++;
+            mLastPutMillis = millis;
+            mLastPutBytes = bytes;
+            if (success) {
+                mPutBytes += bytes;
+                mMaxPutBytes = Math.max(mMaxPutBytes, bytes);
+            } else {
+                mFailedPutCount++;
+            }
+        }
+        if (success) {
+            Log.d(LOG_TAG, "Put " + request.getUri().getPath() + " (" + bytes + " bytes) in " +
+                    millis + "ms");
+        } else {
+            Log.w(LOG_TAG, "Put " + request.getUri().getPath() + " (" + bytes +
+                    " bytes) failed after " + millis + "ms: " +
+                    (status != null ? status : "not connected"));
+        }
+        return success;
+    }
+
+    /**
+     * @return The bytes a put sends: the item's data and the assets made from bytes
+     */
+    private static int getSize(PutDataRequest request) {
+        int bytes = request.getData() != null ? request.getData().length : 0;
+        for (Asset asset : request.getAssets().values()) {
+            if (asset.getData() != null) {
+                bytes += asset.getData().length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a data item from any node, waiting at most {@link #PUT_TIMEOUT_MILLIS}.
+     *
+     * @return A copy of the item's DataMap, or null if there is no such item or it can't be read
+     */
+    public DataMap getDataMap(String path) {
+        if (!connect()) {
+            return null;
+        }
+        Uri uri = new Uri.Builder()
+                .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                .path(path)
+                .build();
+        DataItemBuffer items = Wearable.DataApi.getDataItems(mClient, uri, DataApi.FILTER_PREFIX)
+                .await(PUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            if (!items.getStatus().isSuccess()) {
+                Log.w(LOG_TAG, "Could not read " + path + ": " + items.getStatus());
+                return null;
+            }
+            for (DataItem item : items) {
+                if (path.equals(item.getUri().getPath())) {
+                    return DataMapItem.fromDataItem(item).getDataMap();
+                }
+            }
+            return null;
+        } finally {
+            items.release();
+        }
+    }
+
+    public synchronized long getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized long getFailedPutCount() {
+        return mFailedPutCount;
+    }
+
+    public synchronized long getLastPutMillis() {
+        return mLastPutMillis;
+    }
+
+    /**
+     * @return The bytes of every put that succeeded
+     */
+    public synchronized long getPutBytes() {
+        return mPutBytes;
+    }
+
+    public synchronized int getLastPutBytes() {
+        return mLastPutBytes;
+    }
+
+    public synchronized int getMaxPutBytes() {
+        return mMaxPutBytes;
+    }
+
+    /**
+     * Dumps the shared connection's counters, which live as long as the process, from whichever
+     * of the services that use it is running.  Between updates the same totals are logged each
+     * time the idle connection is dropped.
+     */
+    public static void dumpShared(PrintWriter writer) {
+        WearableConnection connection;
+        synchronized (WearableConnection.class) {
+            connection = sInstance;
+        }
+        if (connection == null) {
+            writer.println("Wearable puts: none since the process started");
+            return;
+        }
+        connection.dump(writer);
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        long delivered = mPutCount - mFailedPutCount;
+        writer.println("Wearable puts: count=" + mPutCount + " failed=" + mFailedPutCount +
+                " last=" + mLastPutMillis + "ms " + mLastPutBytes + " bytes");
+        writer.println("  delivered bytes=" + mPutBytes + " max=" + mMaxPutBytes +
+                " avg=" + (delivered > 0 ? mPutBytes / delivered : 0));
+    }
+}
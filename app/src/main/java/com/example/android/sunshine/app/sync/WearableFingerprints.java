@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.zip.CRC32;
+
+/**
+ * Remembers a fingerprint of the last payload delivered on each data layer path, so an update
+ * that would show the watch exactly what it already shows is not sent, and doesn't wake it.
+ * <p>
+ * Only successful puts are remembered, and a fingerprint is trusted for
+ * {@link #MAX_AGE_MILLIS} at most, so a watch that lost its data item is sent it again on a
+ * later sync.
+ * <p>
+ * It also numbers what is sent on each path, so the watch can count updates lost or repeated on
+ * the way.
+ */
+final class WearableFingerprints {
+
+    private static final String PREFS_NAME = "wearable_fingerprints";
+    private static final String SUFFIX_FINGERPRINT = ".fingerprint";
+    private static final String SUFFIX_DELIVERED_AT = ".delivered_at";
+    private static final String SUFFIX_SPEC_KEY = ".spec_key";
+    private static final String SUFFIX_SEQUENCE = ".sequence";
+
+    static final long MAX_AGE_MILLIS = 12 * 60 * 60 * 1000;
+
+    private WearableFingerprints() {
+    }
+
+    /**
+     * @param parts Everything that decides what the watch shows, in a fixed order
+     */
+    static long fingerprint(byte[]... parts) {
+        CRC32 crc = new CRC32();
+        int length = 0;
+        for (byte[] part : parts) {
+            crc.update(part);
+            length += part.length;
+        }
+        // The length too, so a payload cut short never matches by chance
+        return crc.getValue() << 16 ^ length;
+    }
+
+    /**
+     * @return Whether this exact payload was the last one delivered on the path, recently
+     */
+    static boolean isDelivered(Context context, String path, long fingerprint) {
+        SharedPreferences prefs = getPrefs(context);
+        if (!prefs.contains(path + SUFFIX_FINGERPRINT) ||
+                prefs.getLong(path + SUFFIX_FINGERPRINT, 0) != fingerprint) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - prefs.getLong(path + SUFFIX_DELIVERED_AT, 0);
+        return age >= 0 && age < MAX_AGE_MILLIS;
+    }
+
+    /**
+     * @param specKey The watch's art spec the fingerprint was taken with, see
+     *                {@link #getDeliveredSpecKey}
+     */
+    static void markDelivered(Context context, String path, long fingerprint, String specKey) {
+        getPrefs(context).edit()
+                .putLong(path + SUFFIX_FINGERPRINT, fingerprint)
+                .putLong(path + SUFFIX_DELIVERED_AT, System.currentTimeMillis())
+                .putString(path + SUFFIX_SPEC_KEY, specKey)
+                .apply();
+    }
+
+    /**
+     * @return The art spec key the last delivery on the path was fingerprinted with, or empty.
+     * Fingerprinting a new payload with it tells whether to send without asking the watch.
+     */
+    static String getDeliveredSpecKey(Context context, String path) {
+        return getPrefs(context).getString(path + SUFFIX_SPEC_KEY, "");
+    }
+
+    /**
+     * @return The next number in the path's sequence, which the watch counts dropped and
+     * repeated updates by.  Survives the process, so the watch sees no false gaps.
+     */
+    static synchronized long nextSequence(Context context, String path) {
+        SharedPreferences prefs = getPrefs(context);
+        long sequence = prefs.getLong(path + SUFFIX_SEQUENCE, 0) + 1;
+        prefs.edit().putLong(path + SUFFIX_SEQUENCE, sequence).apply();
+        return sequence;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -3,54 +3,53 @@ package com.example.android.sunshine.app.sync;
 import android.app.IntentService;
 import android.content.Intent;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
-import android.os.Bundle;
 import android.util.Log;
 
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastColumns;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.PendingResult;
-import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
- * An {@link IntentService} subclass for handling asynchronous task requests in
- * a service on a separate handler thread.
- * <p>
- * helper methods.
+ * Sends the forecast from today on to the watch face after a sync: today's values, the days in a
+ * {@link WearForecastPayload} and, once the watch has asked for it, today's art.  Puts go over
+ * the shared {@link WearableConnection}, and one that would only repeat what the watch already
+ * shows is skipped, see {@link WearableFingerprints}.
  */
-public class WearableUpdaterService extends IntentService implements GoogleApiClient.OnConnectionFailedListener {
+public class WearableUpdaterService extends IntentService {
+    private static final String LOG_TAG = WearableUpdaterService.class.getSimpleName();
+
+    static final String FORECAST_PATH = "/forecast";
 
-    private static final String[] FORECAST_COLUMNS = new String[]{
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP
-    };
+    // Delivery metadata sent with every forecast, which the watch measures delivery by
+    static final String KEY_SEQUENCE = "sequence";
+    static final String KEY_PARSED_AT = "parsed_at";
+    static final String KEY_SENT_AT = "sent_at";
 
-    private GoogleApiClient mGoogleApiClient;
+    private static final String EXTRA_PARSED_AT = "parsed_at";
+
+    private WearableConnection mConnection;
 
     public WearableUpdaterService() {
         super("WearableUpdaterService");
     }
 
     /**
-     * Starts this service to perform action Foo with the given parameters. If
-     * the service is already performing a task this action will be queued.
+     * Queues an update of the watch face with the forecast now in the database.  Updates run one
+     * at a time, in the order they were queued.
      *
-     * @see IntentService
+     * @param parsedAt When the forecast was parsed from the server's response, or 0 if unknown
      */
-
-    public static void updateWatchFace(Context context) {
-        Log.wtf("DataMap", "starting watch face update service");
+    public static void updateWatchFace(Context context, long parsedAt) {
         Intent intent = new Intent(context, WearableUpdaterService.class);
         intent.setAction(SunshineSyncAdapter.ACTION_DATA_UPDATED);
+        intent.putExtra(EXTRA_PARSED_AT, parsedAt);
         context.startService(intent);
     }
 
@@ -59,77 +58,114 @@ public class WearableUpdaterService extends IntentService implements GoogleApiCl
         if (intent != null) {
             final String action = intent.getAction();
             if (SunshineSyncAdapter.ACTION_DATA_UPDATED.equalsIgnoreCase(action)) {
-                Log.wtf("DataMap", "stared watch face update service");
-
+                long parsedAt = intent.getLongExtra(EXTRA_PARSED_AT, 0);
                 String location = Utility.getPreferredLocation(getApplicationContext());
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(location, System.currentTimeMillis());
-                Cursor cursor = getContentResolver().query(weatherUri, FORECAST_COLUMNS, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
-                    double high = cursor.getDouble(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP));
-                    double low = cursor.getDouble(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
-
-                    updateWatchFace(weatherId, high, low);
+                long startOfToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+                WearForecastPayload payload = new WearForecastPayload();
+
+                // The snapshot file, when it is for this location, saves the query
+                ForecastSnapshot snapshot = ForecastSnapshot.open(this);
+                if (snapshot != null && location.equals(snapshot.getLocationSetting())) {
+                    int today = snapshot.indexOfFirstDayFrom(startOfToday);
+                    if (today >= 0) {
+                        for (int day = today; day < snapshot.getCount(); day++) {
+                            if (!payload.addDay(snapshot.getDate(day), snapshot.getWeatherId(day),
+                                    snapshot.getHigh(day), snapshot.getLow(day))) {
+                                break;
+                            }
+                        }
+                        updateWatchFace(snapshot.getWeatherId(today), snapshot.getHigh(today),
+                                snapshot.getLow(today), payload, parsedAt);
+                        return;
+                    }
+                }
 
+                ForecastColumns forecast = ForecastColumns.get(this, location);
+                int today = forecast.indexOfFirstDayFrom(startOfToday);
+                if (today >= 0) {
+                    for (int day = today; day < forecast.getCount(); day++) {
+                        if (!payload.addDay(forecast.getDate(day), forecast.getWeatherId(day),
+                                forecast.getHigh(day), forecast.getLow(day))) {
+                            break;
+                        }
+                    }
+                    updateWatchFace(forecast.getWeatherId(today), forecast.getHigh(today),
+                            forecast.getLow(today), payload, parsedAt);
                 }
-                cursor.close();
             }
         }
     }
 
     /**
-     * Handle action DATA UPDATED in the provided background thread with the forecast
-     * parameters.
+     * Puts the forecast from today on in the watch face's data item.  Blocks until the data
+     * layer has the item or the put has failed.
+     * <p>
+     * Today's values are also sent on their own, for watch faces that predate the payload.
+     * Today's art goes along rendered to the size the watch asked for, when it has asked.
+     * Nothing is sent when the watch already has this exact forecast and art.  That is checked
+     * against the art spec of the last delivery before connecting, so an unchanged forecast
+     * costs no connection; a spec the watch changed since is picked up with the next forecast
+     * that differs, or once the fingerprint expires.
+     * <p>
+     * Each forecast sent gets the next sequence number and the times it was parsed and sent,
+     * which leave the fingerprint alone.
+     *
+     * @param parsedAt When the forecast was parsed from the server's response, or 0 if unknown
      */
-    private void updateWatchFace(final int weatherId, final double high, final double low) {
-        Log.wtf("DataMap", "updating watch face datamap, waiting for connection");
-
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
-                    @Override
-                    public void onConnected(Bundle connectionHint) {
-                        Log.wtf("DataMap", "Watch face connected to google api, updating data");
-
-                        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create("/forecast");
-                        DataMap dataMap = putDataMapRequest.getDataMap();
-                        dataMap.putInt(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-                        dataMap.putDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                        dataMap.putDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                        putDataMapRequest.setUrgent();
-
-                        PutDataRequest putDataRequest = putDataMapRequest.asPutDataRequest();
-
-                        PendingResult<DataApi.DataItemResult> pendingResult =
-                                Wearable.DataApi.putDataItem(mGoogleApiClient, putDataRequest.setUrgent());
-
-
-                    }
-
-                    @Override
-                    public void onConnectionSuspended(int cause) {
-                        Log.wtf("DataMap", "watch face update service onConnectionSuspended");
+    private void updateWatchFace(final int weatherId, final double high, final double low,
+                                 WearForecastPayload payload, long parsedAt) {
+        byte[] days = payload.toByteArray();
+        // Today's values are the payload's first day, so the payload and the art spec alone say
+        // what's visible
+        String deliveredSpecKey = WearableFingerprints.getDeliveredSpecKey(this, FORECAST_PATH);
+        if (WearableFingerprints.isDelivered(this, FORECAST_PATH,
+                WearableFingerprints.fingerprint(days, deliveredSpecKey.getBytes()))) {
+            Log.d(LOG_TAG, "The watch already has this forecast, not sending it");
+            return;
+        }
 
-                    }
-                })
-                .addOnConnectionFailedListener(this)
-                .addApi(Wearable.API)
-                .build();
+        DataMap artSpec = mConnection.getDataMap(WearArt.SPEC_PATH);
+        String specKey = WearArt.getSpecKey(artSpec);
+        long fingerprint = WearableFingerprints.fingerprint(days, specKey.getBytes());
+
+        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(FORECAST_PATH);
+        DataMap dataMap = putDataMapRequest.getDataMap();
+        dataMap.putInt(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        dataMap.putDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+        dataMap.putDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        dataMap.putByteArray(WearForecastPayload.KEY, days);
+        WearArt art = artSpec != null ? WearArt.render(this, weatherId, artSpec) : null;
+        if (art != null) {
+            dataMap.putAsset(WearArt.KEY_ART, Asset.createFromBytes(art.png));
+            dataMap.putString(WearArt.KEY_ART_HASH, art.hash);
+            dataMap.putInt(WearArt.KEY_ART_WEATHER_ID, art.weatherId);
+        }
+        dataMap.putLong(KEY_SEQUENCE, WearableFingerprints.nextSequence(this, FORECAST_PATH));
+        dataMap.putLong(KEY_PARSED_AT, parsedAt);
+        dataMap.putLong(KEY_SENT_AT, System.currentTimeMillis());
+        putDataMapRequest.setUrgent();
 
-        mGoogleApiClient.connect();
+        if (mConnection.putDataItem(putDataMapRequest.asPutDataRequest())) {
+            WearableFingerprints.markDelivered(this, FORECAST_PATH, fingerprint, specKey);
+        }
     }
 
     @Override
-    public void onConnectionFailed(ConnectionResult result) {
-        Log.wtf("DataMap", "watch face update service onConnectionFailed");
+    public void onCreate() {
+        super.onCreate();
+        mConnection = WearableConnection.acquire(this);
+    }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        WearableConnection.dumpShared(writer);
     }
 
     @Override
     public void onDestroy() {
+        // onHandleIntent has returned, so no put is still running
+        mConnection.release();
         super.onDestroy();
-        if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
-            mGoogleApiClient.disconnect();
-        }
     }
 
 }
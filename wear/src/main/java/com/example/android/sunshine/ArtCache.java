@@ -0,0 +1,273 @@
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The weather art the phone renders for this watch.  The face publishes the size and config it
+ * draws the art at in the {@link #SPEC_PATH} data item; the phone sends today's art as a PNG Asset
+ * of exactly that size, with the SHA-1 of its bytes.  Art is kept in files named by that hash, so
+ * art the watch has seen before is never fetched again.  The phone's WearArt writes it; the two
+ * must agree on the keys.
+ * <p>
+ * The config is the {@link Bitmap.Config} the art is decoded to, not a display mode.  There is no
+ * ambient art: the face grays this art with a color filter when it draws in ambient mode.
+ */
+public final class ArtCache {
+    private static final String TAG = "ArtCache";
+
+    // The data item the face describes the art it wants in, and its keys
+    public static final String SPEC_PATH = "/art_spec";
+    private static final String KEY_WIDTH = "width";
+    private static final String KEY_HEIGHT = "height";
+    private static final String KEY_CONFIG = "config";
+
+    // The "/forecast" keys the art is sent under
+    public static final String KEY_ART = "art";
+    public static final String KEY_ART_HASH = "art_hash";
+    public static final String KEY_ART_WEATHER_ID = "art_weather_id";
+
+    // The art keeps its transparency, so the background shows through
+    private static final Bitmap.Config CONFIG = Bitmap.Config.ARGB_8888;
+
+    private static final String DIR_NAME = "art";
+    // More than the conditions there is art for, so a size change doesn't thrash
+    private static final int MAX_FILES = 16;
+    private static final long FETCH_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(15);
+
+    private static final String PREFS_NAME = "art_cache";
+    private static final String PREF_PUBLISHED_SPEC = "published_spec";
+
+    public interface Listener {
+        void onArtLoaded(String hash, Bitmap art);
+    }
+
+    private ArtCache() {
+    }
+
+    /**
+     * Decodes the art from this watch's own drawables, for when the phone hasn't sent any.  The
+     * face draws it at half its size, so it is sampled down while decoding rather than decoded
+     * in full and scaled.
+     */
+    @Nullable
+    public static Bitmap decodeResource(Resources resources, int weatherId) {
+        int resource = Util.getArtResource(weatherId);
+        if (resource == -1) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 2;
+        options.inPreferredConfig = CONFIG;
+        return BitmapFactory.decodeResource(resources, resource, options);
+    }
+
+    /**
+     * Publishes the size the face draws the art at, unless the phone already has it.  Needs a
+     * connected client.
+     */
+    public static void publishSpec(Context context, GoogleApiClient client) {
+        // Every drawable is the same size, so any of them gives it, without decoding the pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(context.getResources(), R.drawable.art_clear, options);
+        int width = options.outWidth / 2;
+        int height = options.outHeight / 2;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        final String spec = width + "x" + height + " " + CONFIG.name();
+        final SharedPreferences prefs =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (spec.equals(prefs.getString(PREF_PUBLISHED_SPEC, null))) {
+            return;
+        }
+        PutDataMapRequest request = PutDataMapRequest.create(SPEC_PATH);
+        DataMap map = request.getDataMap();
+        map.putInt(KEY_WIDTH, width);
+        map.putInt(KEY_HEIGHT, height);
+        map.putString(KEY_CONFIG, CONFIG.name());
+        Wearable.DataApi.putDataItem(client, request.asPutDataRequest())
+                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                    @Override
+                    public void onResult(DataApi.DataItemResult result) {
+                        if (result.getStatus().isSuccess()) {
+                            prefs.edit().putString(PREF_PUBLISHED_SPEC, spec).apply();
+                            Log.i(TAG, "Published art spec " + spec);
+                        } else {
+                            Log.w(TAG, "Could not publish art spec: " + result.getStatus());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Loads art in the background, from its file if the watch has it and otherwise from the
+     * Asset, and tells the listener on the main thread.  Nothing is told if it can't be loaded.
+     *
+     * @param asset The art as sent, or null to only look in the files
+     */
+    public static void load(Context context, GoogleApiClient client, @Nullable Asset asset,
+                            String hash, Listener listener) {
+        new LoadTask(new File(context.getFilesDir(), DIR_NAME), client, asset, hash, listener)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private static class LoadTask extends AsyncTask<Void, Void, Bitmap> {
+        private final File mDir;
+        private final GoogleApiClient mClient;
+        private final Asset mAsset;
+        private final String mHash;
+        private final Listener mListener;
+
+        LoadTask(File dir, GoogleApiClient client, Asset asset, String hash, Listener listener) {
+            mDir = dir;
+            mClient = client;
+            mAsset = asset;
+            mHash = hash;
+            mListener = listener;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = CONFIG;
+
+            File file = new File(mDir, mHash + ".png");
+            if (file.exists()) {
+                // Keeps the files in least recently used order for pruning
+                file.setLastModified(System.currentTimeMillis());
+                return BitmapFactory.decodeFile(file.getPath(), options);
+            }
+            if (mAsset == null || !mClient.isConnected()) {
+                return null;
+            }
+
+            byte[] png;
+            try {
+                png = fetch();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not fetch art " + mHash, e);
+                return null;
+            }
+            if (png == null) {
+                return null;
+            }
+            if (!mHash.equals(sha1Hex(png))) {
+                Log.w(TAG, "Art " + mHash + " doesn't match its hash, dropping it");
+                return null;
+            }
+            try {
+                store(file, png);
+            } catch (IOException e) {
+                // It can still be shown, it just isn't kept
+                Log.w(TAG, "Could not keep art " + mHash, e);
+            }
+            return BitmapFactory.decodeByteArray(png, 0, png.length, options);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap art) {
+            if (art != null) {
+                mListener.onArtLoaded(mHash, art);
+            }
+        }
+
+        private byte[] fetch() throws IOException {
+            DataApi.GetFdForAssetResult result = Wearable.DataApi.getFdForAsset(mClient, mAsset)
+                    .await(FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (!result.getStatus().isSuccess()) {
+                Log.w(TAG, "Could not fetch art " + mHash + ": " + result.getStatus());
+                result.release();
+                return null;
+            }
+            InputStream in = result.getInputStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+                result.release();
+            }
+        }
+
+        private void store(File file, byte[] png) throws IOException {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("Could not create " + mDir);
+            }
+            File tmp = new File(mDir, file.getName() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(png);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not move art into place");
+            }
+            prune();
+        }
+
+        private void prune() {
+            File[] files = mDir.listFiles();
+            if (files == null || files.length <= MAX_FILES) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(b.lastModified(), a.lastModified());
+                }
+            });
+            for (int i = MAX_FILES; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private static String sha1Hex(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.sunshine;
+
+import android.util.Log;
+
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.PrintWriter;
+
+/**
+ * How forecasts from the phone are arriving: how long they take, how big they are, and how many
+ * are lost or repeated on the way.  The phone numbers every forecast it sends and stamps it with
+ * when it was parsed and when it was sent; see its WearableUpdaterService for the keys.
+ * <p>
+ * Latencies compare the phone's clock with the watch's, which the phone keeps in step, so they
+ * are as good as that sync; a negative one counts in the lowest bucket.  Nothing survives the
+ * face, so the first forecast after a restart starts the sequence afresh.
+ */
+public final class DeliveryStats {
+    private static final String TAG = "DeliveryStats";
+
+    private static final String KEY_SEQUENCE = "sequence";
+    private static final String KEY_PARSED_AT = "parsed_at";
+    private static final String KEY_SENT_AT = "sent_at";
+
+    private static final long[] BUCKET_LIMITS_MILLIS = {250, 1000, 5000, 30000, 300000};
+
+    // From the phone putting the item to the watch hearing of it
+    private final long[] mDeliveryBuckets = new long[BUCKET_LIMITS_MILLIS.length + 1];
+    // From the phone parsing the forecast to the watch hearing of it
+    private final long[] mEndToEndBuckets = new long[BUCKET_LIMITS_MILLIS.length + 1];
+
+    private long mCount;
+    private long mDropped;
+    private long mDuplicates;
+    private long mLastSequence = -1;
+    private long mLastDeliveryMillis;
+    private long mMaxDeliveryMillis;
+    private long mBytes;
+    private int mLastBytes;
+    private int mMaxBytes;
+
+    /**
+     * Records a forecast the phone sent, as the data layer delivered it.
+     *
+     * @param bytes The size of the data item
+     */
+    public synchronized void record(DataMap forecast, int bytes) {
+        long receivedAt = System.currentTimeMillis();
+        mCount++;
+        mBytes += bytes;
+        mLastBytes = bytes;
+        mMaxBytes = Math.max(mMaxBytes, bytes);
+
+        // Forecasts from phones that predate the stamps are only counted
+        long sequence = forecast.getLong(KEY_SEQUENCE, -1);
+        if (sequence < 0) {
+            return;
+        }
+        if (mLastSequence >= 0 && sequence <= mLastSequence) {
+            mDuplicates++;
+            Log.w(TAG, "Forecast " + sequence + " again, after " + mLastSequence);
+            return;
+        }
+        if (mLastSequence >= 0 && sequence > mLastSequence + 1) {
+            mDropped += sequence - mLastSequence - 1;
+            Log.w(TAG, "Forecasts " + (mLastSequence + 1) + " to " + (sequence - 1) + " lost");
+        }
+        mLastSequence = sequence;
+
+        long sentAt = forecast.getLong(KEY_SENT_AT, 0);
+        if (sentAt > 0) {
+            mLastDeliveryMillis = receivedAt - sentAt;
+            mMaxDeliveryMillis = Math.max(mMaxDeliveryMillis, mLastDeliveryMillis);
+            mDeliveryBuckets[bucket(mLastDeliveryMillis)]++;
+        }
+        long parsedAt = forecast.getLong(KEY_PARSED_AT, 0);
+        if (parsedAt > 0) {
+            mEndToEndBuckets[bucket(receivedAt - parsedAt)]++;
+        }
+        Log.i(TAG, "Forecast " + sequence + ": " + bytes + " bytes, delivered in " +
+                (sentAt > 0 ? mLastDeliveryMillis + "ms" : "?") + ", " +
+                (parsedAt > 0 ? (receivedAt - parsedAt) + "ms" : "?") + " after it was parsed");
+    }
+
+    private static int bucket(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_MILLIS.length && millis >= BUCKET_LIMITS_MILLIS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Forecast deliveries: count=" + mCount + " dropped=" + mDropped +
+                " duplicates=" + mDuplicates + " last sequence=" + mLastSequence);
+        writer.println(prefix + "  bytes=" + mBytes + " last=" + mLastBytes + " max=" + mMaxBytes +
+                " avg=" + (mCount > 0 ? mBytes / mCount : 0));
+        writer.println(prefix + "  delivery: last=" + mLastDeliveryMillis + "ms max=" +
+                mMaxDeliveryMillis + "ms");
+        writer.println(prefix + "    " + formatHistogram(mDeliveryBuckets));
+        writer.println(prefix + "  end to end:");
+        writer.println(prefix + "    " + formatHistogram(mEndToEndBuckets));
+    }
+
+    private static String formatHistogram(long[] buckets) {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < buckets.length; i++) {
+            histogram.append(i < BUCKET_LIMITS_MILLIS.length ?
+                    "<" + BUCKET_LIMITS_MILLIS[i] : ">=" + BUCKET_LIMITS_MILLIS[i - 1]);
+            histogram.append("ms:").append(buckets[i]).append(' ');
+        }
+        return histogram.toString().trim();
+    }
+}
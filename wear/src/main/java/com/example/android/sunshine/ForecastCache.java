@@ -0,0 +1,142 @@
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The last forecast the phone sent, kept in a small file on the watch so the face can draw it as
+ * soon as it starts, before the data layer is connected.  Only the phone writes the "/forecast"
+ * data item; the watch keeps its own copy here instead of writing the item back.
+ */
+public final class ForecastCache {
+    private static final String TAG = "ForecastCache";
+
+    static final String FILE_NAME = "forecast.cache";
+
+    private static final int VERSION = 2;
+
+    public final int weatherId;
+    public final double high;
+    public final double low;
+    // The packed multi-day forecast, or null if the phone didn't send one
+    @Nullable
+    public final byte[] days;
+    public final long receivedAt;
+    // The art the phone rendered for this watch, by its ArtCache hash, or null if none came
+    @Nullable
+    public final String artHash;
+    public final int artWeatherId;
+
+    public ForecastCache(int weatherId, double high, double low, @Nullable byte[] days,
+                         long receivedAt, @Nullable String artHash, int artWeatherId) {
+        this.weatherId = weatherId;
+        this.high = high;
+        this.low = low;
+        this.days = days;
+        this.receivedAt = receivedAt;
+        this.artHash = artHash;
+        this.artWeatherId = artWeatherId;
+    }
+
+    /**
+     * Reads the cached forecast.  The file is a few dozen bytes, so this is fine to call while
+     * the face is being created.
+     *
+     * @return The forecast, or null if there is none or it can't be read
+     */
+    @Nullable
+    public static ForecastCache read(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                int version = in.readInt();
+                if (version < 1 || version > VERSION) {
+                    return null;
+                }
+                int weatherId = in.readInt();
+                double high = in.readDouble();
+                double low = in.readDouble();
+                long receivedAt = in.readLong();
+                int length = in.readInt();
+                byte[] days = null;
+                if (length >= 0) {
+                    days = new byte[length];
+                    in.readFully(days);
+                }
+                String artHash = null;
+                int artWeatherId = 0;
+                // Version 1 predates the art
+                if (version >= 2) {
+                    artHash = in.readUTF();
+                    artWeatherId = in.readInt();
+                }
+                return new ForecastCache(weatherId, high, low, days, receivedAt,
+                        artHash != null && !artHash.isEmpty() ? artHash : null, artWeatherId);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the cached forecast", e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the cached forecast on a background thread.  Writes run in the order they were
+     * asked for, and each replaces the file in one rename.
+     */
+    public static void writeAsync(Context context, final ForecastCache forecast) {
+        final File dir = context.getFilesDir();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forecast.write(dir);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not cache the forecast", e);
+                }
+            }
+        });
+    }
+
+    private void write(File dir) throws IOException {
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(file);
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(weatherId);
+            out.writeDouble(high);
+            out.writeDouble(low);
+            out.writeLong(receivedAt);
+            if (days != null) {
+                out.writeInt(days.length);
+                out.write(days);
+            } else {
+                out.writeInt(-1);
+            }
+            out.writeUTF(artHash != null ? artHash : "");
+            out.writeInt(artWeatherId);
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(dir, FILE_NAME))) {
+            throw new IOException("Could not move the cached forecast into place");
+        }
+    }
+}
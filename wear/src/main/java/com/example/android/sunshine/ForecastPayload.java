@@ -0,0 +1,109 @@
+package com.example.android.sunshine;
+
+import android.support.annotation.Nullable;
+import android.text.format.Time;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the packed multi-day forecast the phone sends in the "/forecast" data item, straight out
+ * of its bytes: no DataMap or object per day.  The phone's WearForecastPayload writes it; see
+ * there for the layout.  The phone's TestWearForecastPayload tests the writer against a copy of
+ * this reader, so change the two together.
+ */
+public final class ForecastPayload {
+
+    // The DataMap key the payload is sent under
+    public static final String KEY = "days";
+
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 7;
+    // The fields of a record this version knows
+    private static final int MIN_RECORD_SIZE = 7;
+
+    private static final int RECORD_GAP = 0;
+    private static final int RECORD_WEATHER_ID = 1;
+    private static final int RECORD_HIGH = 3;
+    private static final int RECORD_LOW = 5;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mRecordSize;
+    private final int[] mJulianDays;
+
+    private ForecastPayload(ByteBuffer buffer, int count, int recordSize) {
+        mBuffer = buffer;
+        mCount = count;
+        mRecordSize = recordSize;
+        mJulianDays = new int[count];
+        int julianDay = buffer.getInt(3);
+        for (int day = 0; day < count; day++) {
+            julianDay += buffer.get(record(day) + RECORD_GAP);
+            mJulianDays[day] = julianDay;
+        }
+    }
+
+    /**
+     * @return The forecast, or null if the bytes are not a payload this watch can read
+     */
+    @Nullable
+    public static ForecastPayload decode(@Nullable byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int count = buffer.get(1) & 0xff;
+        int recordSize = buffer.get(2) & 0xff;
+        if (buffer.get(0) != VERSION || recordSize < MIN_RECORD_SIZE ||
+                bytes.length < HEADER_SIZE + count * recordSize) {
+            return null;
+        }
+        return new ForecastPayload(buffer, count, recordSize);
+    }
+
+    /**
+     * The Julian day of a moment in this watch's time zone, to compare with
+     * {@link #getJulianDay}.
+     */
+    public static int julianDayOf(long millis) {
+        Time time = new Time();
+        time.set(millis);
+        return Time.getJulianDay(millis, time.gmtoff);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getJulianDay(int day) {
+        return mJulianDays[day];
+    }
+
+    public int getWeatherId(int day) {
+        return mBuffer.getShort(record(day) + RECORD_WEATHER_ID);
+    }
+
+    public float getHigh(int day) {
+        return mBuffer.getShort(record(day) + RECORD_HIGH) / 10f;
+    }
+
+    public float getLow(int day) {
+        return mBuffer.getShort(record(day) + RECORD_LOW) / 10f;
+    }
+
+    /**
+     * @return The day with this Julian day, or -1 if the payload doesn't have it
+     */
+    public int indexOfJulianDay(int julianDay) {
+        for (int day = 0; day < mCount; day++) {
+            if (mJulianDays[day] == julianDay) {
+                return day;
+            }
+        }
+        return -1;
+    }
+
+    private int record(int day) {
+        return HEADER_SIZE + day * mRecordSize;
+    }
+}
@@ -34,6 +34,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.ColorInt;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -49,17 +50,19 @@ import android.view.WindowInsets;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
-import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.NodeApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -91,6 +94,12 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
      */
     private static final int MSG_UPDATE_TIME = 0;
 
+    /**
+     * How long the startup read of the "/forecast" item may take before the face gives up on it
+     * and waits for the next change instead.
+     */
+    private static final long FORECAST_READ_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
 
     @Override
     public Engine onCreateEngine() {
@@ -101,7 +110,8 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
     private class Engine extends CanvasWatchFaceService.Engine implements
             DataApi.DataListener,
             GoogleApiClient.ConnectionCallbacks,
-            GoogleApiClient.OnConnectionFailedListener {
+            GoogleApiClient.OnConnectionFailedListener,
+            ArtCache.Listener {
 
         private static final float HOUR_STROKE_WIDTH = 5f;
         private static final float MINUTE_STROKE_WIDTH = 5f;
@@ -145,10 +155,23 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
         private int weatherId;
         private double highTemp;
         private double lowTemp;
+        // The days the phone sent, so the face moves on to tomorrow without another push
+        private ForecastPayload mForecast;
+        private int mForecastJulianDay;
+        // Whether real weather, cached or from the phone, has been shown since the face started
+        private boolean mHasWeather;
+        private long mCreatedAt;
+        // Time to first real weather, for the logs; -1 until there is some
+        private long mFirstWeatherMillis = -1;
+        private final DeliveryStats mDeliveryStats = new DeliveryStats();
 
         private Bitmap mBackgroundBitmap;
         private Bitmap mGrayBackgroundBitmap;
         private Bitmap weatherBitmap;
+        // The art the phone rendered for this watch, once loaded, and what it is of
+        private Bitmap mArt;
+        private String mArtHash;
+        private int mArtWeatherId;
         private boolean mBurnInProtection;
         private int toggler;
 
@@ -197,6 +220,7 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
         @Override
         public void onCreate(SurfaceHolder holder) {
             super.onCreate(holder);
+            mCreatedAt = SystemClock.elapsedRealtime();
 
             mGoogleApiClient = new GoogleApiClient.Builder(getApplicationContext())
                     .addApi(Wearable.API)
@@ -221,13 +245,6 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
             mDateColor = ContextCompat.getColor(getApplicationContext(), R.color.date_color);
 
 
-            // Weather art
-            if (weatherId > 0) {
-                weatherBitmap = BitmapFactory.decodeResource(getResources(), Util.getArtResource(weatherId));
-                if (weatherBitmap != null)
-                    weatherBitmap = Bitmap.createScaledBitmap(weatherBitmap, weatherBitmap.getWidth() / 2, weatherBitmap.getHeight() / 2, true);
-            }
-
             mHourPaint = getHourHandPaint();
             mMinutePaint = getMinuteHandPaint();
             mSecondPaint = getSecondHandPaint();
@@ -266,6 +283,14 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
             Palette.from(mBackgroundBitmap).generate(paletteListener);
             mCalendar = Calendar.getInstance();
             mDate = mCalendar.getTime();
+
+            // Whatever the phone last sent, so the first frame has real weather
+            ForecastCache cached = ForecastCache.read(getApplicationContext());
+            if (cached != null) {
+                showForecast(cached);
+                loadArt(cached, null);
+                onWeatherShown("the cache");
+            }
         }
 
         private void updateWatchHandStyle() {
@@ -330,6 +355,7 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
                 mGoogleApiClient.connect();
                 // Update time zone in case it changed while we weren't visible.
                 mCalendar.setTimeZone(TimeZone.getDefault());
+                showTodayFromForecast();
                 invalidate();
             } else {
                 unregisterReceiver();
@@ -392,6 +418,7 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
         @Override
         public void onTimeTick() {
             super.onTimeTick();
+            showTodayFromForecast();
             invalidate();
         }
 
@@ -445,10 +472,12 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
 
             // Weather art
             if (weatherBitmap == null && weatherId > 0) {
-
-                weatherBitmap = BitmapFactory.decodeResource(getResources(), Util.getArtResource(weatherId));
-                if (weatherBitmap != null)
-                    weatherBitmap = Bitmap.createScaledBitmap(weatherBitmap, weatherBitmap.getWidth() / 2, weatherBitmap.getHeight() / 2, true);
+                // The phone's art is already the size drawn; our own is the fallback
+                if (mArt != null && weatherId == mArtWeatherId) {
+                    weatherBitmap = mArt;
+                } else {
+                    weatherBitmap = ArtCache.decodeResource(getResources(), weatherId);
+                }
             }
 
             if (weatherBitmap != null && (!mAmbient || toggler == AMBIENT_WEATHER_ART)) {
@@ -545,7 +574,7 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
         }
 
         private void mock() {
-            if (weatherId == 0) {
+            if (!mHasWeather && weatherId == 0) {
                 weatherId = 800;
                 highTemp = 25;
                 lowTemp = 14;
@@ -679,6 +708,7 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
         @Override
         public void onConnected(@Nullable Bundle bundle) {
             Wearable.DataApi.addListener(mGoogleApiClient, this);
+            ArtCache.publishSpec(getApplicationContext(), mGoogleApiClient);
             syncData();
 
         }
@@ -701,57 +731,166 @@ public class SunshineWatchFace extends CanvasWatchFaceService {
                 if (event.getType() == DataEvent.TYPE_CHANGED) {
                     if ("/forecast".compareTo(event.getDataItem().getUri().getPath()) == 0) {
                         DataMap map = DataMapItem.fromDataItem(event.getDataItem()).getDataMap();
+                        byte[] data = event.getDataItem().getData();
+                        mDeliveryStats.record(map, data != null ? data.length : 0);
                         updateUi(map);
                     }
                 }
             }
         }
 
+        /**
+         * Reads the "/forecast" items of every node in one call, rather than listing the nodes
+         * and asking each in turn, and shows the newest.  Gives up after
+         * {@link #FORECAST_READ_TIMEOUT_MS}; the listener still catches the next change.
+         */
         private void syncData() {
 
             Log.i(TAG, "Syncing data from handheld");
 
-            Wearable.NodeApi.getConnectedNodes(mGoogleApiClient).setResultCallback(new ResultCallback<NodeApi.GetConnectedNodesResult>() {
-                @Override
-                public void onResult(NodeApi.GetConnectedNodesResult getConnectedNodesResult) {
-                    for (Node node : getConnectedNodesResult.getNodes()) {
-                        final String localNode = node.getId();
-                        Uri uri = new Uri.Builder()
-                                .scheme(PutDataRequest.WEAR_URI_SCHEME)
-                                .path("/forecast")
-                                .authority(localNode)
-                                .build();
-                        Wearable.DataApi.getDataItem(mGoogleApiClient, uri)
-                                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                                    @Override
-                                    public void onResult(DataApi.DataItemResult dataItemResult) {
-                                        if (dataItemResult.getStatus().isSuccess() && dataItemResult.getDataItem() != null) {
-                                            updateUi(DataMapItem.fromDataItem(dataItemResult.getDataItem()).getDataMap());
-                                        }
-
-                                    }
-                                });
-                    }
-                }
-            });
+            final long start = SystemClock.elapsedRealtime();
+            Uri uri = new Uri.Builder()
+                    .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                    .path("/forecast")
+                    .build();
+            Wearable.DataApi.getDataItems(mGoogleApiClient, uri, DataApi.FILTER_PREFIX)
+                    .setResultCallback(new ResultCallback<DataItemBuffer>() {
+                        @Override
+                        public void onResult(DataItemBuffer dataItems) {
+                            try {
+                                if (!dataItems.getStatus().isSuccess()) {
+                                    Log.w(TAG, "Could not read the forecast: " + dataItems.getStatus());
+                                    return;
+                                }
+                                DataMap newest = getNewestForecast(dataItems);
+                                Log.i(TAG, "Read " + dataItems.getCount() + " forecast items in " +
+                                        (SystemClock.elapsedRealtime() - start) + "ms");
+                                if (newest != null) {
+                                    updateUi(newest);
+                                }
+                            } finally {
+                                dataItems.release();
+                            }
+                        }
+                    }, FORECAST_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        }
 
+        /**
+         * Picks the forecast that starts on the latest day.  Items left behind by older versions
+         * of the face, which wrote the forecast back, start no later than the phone's.
+         */
+        @Nullable
+        private DataMap getNewestForecast(DataItemBuffer dataItems) {
+            DataMap newest = null;
+            int newestJulianDay = Integer.MIN_VALUE;
+            for (DataItem item : dataItems) {
+                if (!"/forecast".equals(item.getUri().getPath())) {
+                    continue;
+                }
+                DataMap map = DataMapItem.fromDataItem(item).getDataMap();
+                ForecastPayload days = ForecastPayload.decode(map.getByteArray(ForecastPayload.KEY));
+                int julianDay = days != null && days.getCount() > 0
+                        ? days.getJulianDay(0) : Integer.MIN_VALUE;
+                if (newest == null || julianDay > newestJulianDay) {
+                    newest = map;
+                    newestJulianDay = julianDay;
+                }
+            }
+            return newest;
         }
 
         private void updateUi(DataMap dataSet) {
             Log.i(TAG, "Updating UI with new values");
-            weatherId = dataSet.getInt("weather_id");
-            highTemp = dataSet.getDouble("max");
-            lowTemp = dataSet.getDouble("min");
-            saveDataSet(dataSet);
-            weatherBitmap = null;
+            ForecastCache forecast = new ForecastCache(dataSet.getInt("weather_id"),
+                    dataSet.getDouble("max"), dataSet.getDouble("min"),
+                    dataSet.getByteArray(ForecastPayload.KEY), System.currentTimeMillis(),
+                    dataSet.getString(ArtCache.KEY_ART_HASH),
+                    dataSet.getInt(ArtCache.KEY_ART_WEATHER_ID));
+            showForecast(forecast);
+            loadArt(forecast, dataSet.getAsset(ArtCache.KEY_ART));
+            onWeatherShown("the phone");
+            ForecastCache.writeAsync(getApplicationContext(), forecast);
             invalidate();
         }
 
-        private void saveDataSet(DataMap dataSet) {
-            PutDataMapRequest request = PutDataMapRequest.create("/forecast");
-            DataMap newDataMap = request.getDataMap();
-            newDataMap.putAll(dataSet);
-            Wearable.DataApi.putDataItem(mGoogleApiClient, request.asPutDataRequest());
+        /**
+         * Starts loading the phone's art for a forecast, unless it is the art already shown.
+         *
+         * @param asset The art as sent, or null to only look in the watch's own copies
+         */
+        private void loadArt(ForecastCache forecast, @Nullable Asset asset) {
+            if (forecast.artHash == null ||
+                    (forecast.artHash.equals(mArtHash) && (mArt != null || asset == null))) {
+                return;
+            }
+            mArtHash = forecast.artHash;
+            mArtWeatherId = forecast.artWeatherId;
+            mArt = null;
+            ArtCache.load(getApplicationContext(), mGoogleApiClient, asset, mArtHash, this);
+        }
+
+        @Override
+        public void onArtLoaded(String hash, Bitmap art) {
+            if (hash.equals(mArtHash)) {
+                mArt = art;
+                weatherBitmap = null;
+                invalidate();
+            }
+        }
+
+        @Override
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+            super.dump(prefix, fd, writer, args);
+            writer.println(prefix + "First weather after " +
+                    (mFirstWeatherMillis >= 0 ? mFirstWeatherMillis + "ms" : "none yet"));
+            mDeliveryStats.dump(prefix, writer);
+        }
+
+        /**
+         * Records the time from the face starting to it first showing real weather.
+         */
+        private void onWeatherShown(String source) {
+            mHasWeather = true;
+            if (mFirstWeatherMillis < 0) {
+                mFirstWeatherMillis = SystemClock.elapsedRealtime() - mCreatedAt;
+                Log.i(TAG, "First weather from " + source + " after " + mFirstWeatherMillis + "ms");
+            }
+        }
+
+        private void showForecast(ForecastCache forecast) {
+            weatherId = forecast.weatherId;
+            highTemp = forecast.high;
+            lowTemp = forecast.low;
+            mForecast = ForecastPayload.decode(forecast.days);
+            mForecastJulianDay = 0;
+            showTodayFromForecast();
+            weatherBitmap = null;
+        }
+
+        /**
+         * Shows today's day of the multi-day forecast, once per day.  Keeps what is shown when
+         * the forecast doesn't reach today.
+         */
+        private void showTodayFromForecast() {
+            if (mForecast == null) {
+                return;
+            }
+            int julianDay = ForecastPayload.julianDayOf(System.currentTimeMillis());
+            if (julianDay == mForecastJulianDay) {
+                return;
+            }
+            int today = mForecast.indexOfJulianDay(julianDay);
+            if (today < 0) {
+                return;
+            }
+            mForecastJulianDay = julianDay;
+            if (weatherId != mForecast.getWeatherId(today)) {
+                weatherId = mForecast.getWeatherId(today);
+                weatherBitmap = null;
+            }
+            highTemp = mForecast.getHigh(today);
+            lowTemp = mForecast.getLow(today);
         }
 
     }